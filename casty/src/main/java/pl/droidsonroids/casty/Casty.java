@@ -2,51 +2,81 @@ package pl.droidsonroids.casty;
 
 import android.app.Activity;
 import android.app.Application;
-import android.os.Bundle;
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.app.MediaRouteButton;
 import android.util.Log;
 import android.view.Menu;
-import android.view.View;
-import android.view.ViewGroup;
-import android.widget.FrameLayout;
+import android.view.MenuItem;
 
-import com.google.android.gms.cast.MediaStatus;
 import com.google.android.gms.cast.framework.AppVisibilityListener;
 import com.google.android.gms.cast.framework.CastButtonFactory;
-import com.google.android.gms.cast.framework.CastContext;
 import com.google.android.gms.cast.framework.CastOptions;
-import com.google.android.gms.cast.framework.CastSession;
-import com.google.android.gms.cast.framework.CastState;
-import com.google.android.gms.cast.framework.CastStateListener;
-import com.google.android.gms.cast.framework.SessionManager;
-import com.google.android.gms.cast.framework.SessionManagerListener;
-import com.google.android.gms.cast.framework.media.RemoteMediaClient;
 import com.google.android.gms.cast.framework.media.widget.ExpandedControllerActivity;
 
-import java.util.HashSet;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
+import java.util.List;
 
 /**
  * Core class of Casty. It manages buttons/widgets and gives access to the media player.
+ * Each instance is a cheap Activity-scoped handle to the process-wide {@link CastyCore},
+ * which owns the session wiring. Headless instances, see {@link #getHeadlessInstance(Context)},
+ * control playback from Services, widgets or receivers without any UI.
  */
 public class Casty {
 
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({DISCOVERY_ACTIVE, DISCOVERY_PASSIVE, DISCOVERY_OFF})
+    public @interface DiscoveryMode {}
+    /**
+     * Actively scans for devices while a handle is resumed and not connected. Costs battery,
+     * so use it on screens where casting is likely.
+     */
+    public static final int DISCOVERY_ACTIVE = 0;
+    /**
+     * Observes device availability without scanning. This is the default.
+     */
+    public static final int DISCOVERY_PASSIVE = 1;
+    /**
+     * Neither scans nor reports device availability.
+     */
+    public static final int DISCOVERY_OFF = 2;
+
     static CastOptions customCastOptions;
 
     private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static Casty headlessInstance;
 
     private boolean isValid;
-    private Activity activity;
-    private CastContext castContext;
-    private CastSession castSession;
-    private SessionManager sessionManager;
-    private RemoteMediaClient remoteMediaClient;
-    private HashSet<OnConnectChangeListener> onConnectChangeListeners = new HashSet<>();
-    private HashSet<OnPlaybackStateChangeListener> onPlaybackStateChangeListeners = new HashSet<>();
+    private WeakReference<Activity> activityReference;
+    private Context applicationContext;
+    private boolean headless;
+    private CastyCore core;
+    private boolean scrubbing;
+    private boolean pending;
+    private boolean resumed;
+    private boolean miniControllerEnabled;
+    private int discoveryMode = DISCOVERY_PASSIVE;
+    private Boolean lastCastAvailable;
+    private MenuItem mediaRouteMenuItem;
+    private MediaRouteButton mediaRouteButton;
+    private Menu pendingMenu;
+    private MediaRouteButton pendingMediaRouteButton;
+    private final ListenerRegistry<OnConnectChangeListener> onConnectChangeListeners =
+            new ListenerRegistry<>(new OnConnectChangeListener[0]);
+    private final ListenerRegistry<OnPlaybackStateChangeListener> onPlaybackStateChangeListeners =
+            new ListenerRegistry<>(new OnPlaybackStateChangeListener[0]);
     private Class<? extends ExpandedControllerActivity> expandedControllerActivity = ExpandedControlsActivity.class;
+    private CastyPublisher<ConnectionState> connectionPublisher;
+    private CastyPublisher<Boolean> discoveryPublisher;
+    private CastyPublisher<PlaybackSnapshot> playbackStatePublisher;
+    private CastyPublisher<PlaybackProgress> progressPublisher;
 
     /**
      * Sets the custom receiver ID. Should be used in the {@link Application} class.
@@ -77,7 +107,28 @@ public class Casty {
     }
 
     /**
-     * Gets new Casty instance.
+     * Prepares Casty during idle time, e.g. from {@link Application#onCreate()}. The Google Play
+     * Services check runs on a background thread and the {@link com.google.android.gms.cast.framework.CastContext}
+     * is created once the main thread is idle. Instances obtained meanwhile are returned immediately
+     * and become valid when warm-up finishes. Must be called from the main thread.
+     *
+     * @param context any context, only the application context is retained
+     */
+    public static void warmUp(@NonNull Context context) {
+
+        if(context == null) {
+            throw new NullPointerException("Context cannot be null");
+        }
+
+        CastyCore.warmUp(context);
+    }
+
+    /**
+     * Gets new Casty instance. If {@link #warmUp(Context)} is still running, the instance is
+     * returned right away and becomes valid once warm-up finishes; listeners added meanwhile are kept.
+     * The instance references the Activity weakly and is owned by it until it is destroyed, so it
+     * keeps working even if the result is not stored, without keeping the Activity or its listeners
+     * reachable from anywhere else.
      *
      * @param activity {@link Activity} in which Casty object is created
      * @return the Casty object.
@@ -88,13 +139,35 @@ public class Casty {
             throw new NullPointerException("Activity cannot be null");
         }
 
-        boolean isValid = Utils.isPlayServicesAvailable(activity.getApplicationContext());
+        if(CastyCore.isWarmingUp()) {
+
+            Casty casty = new Casty(activity);
+            final WeakReference<Casty> reference = new WeakReference<>(casty);
+
+            CastyCore.runWhenWarm(new Runnable() {
+                @Override
+                public void run() {
+
+                    Casty casty = reference.get();
+
+                    if(casty != null) {
+                        casty.onWarmedUp();
+                    }
+                }
+            });
+
+            return casty;
+        }
+
+        boolean isValid = CastyCore.isPlayServicesAvailable(activity);
 
         return new Casty(activity,isValid);
     }
 
     /**
      * Gets new Casty instance with a MiniController attached to the activity.
+     * The MiniController is inflated into this Activity and overlaid on its content once a
+     * session exists; the Activity's layout is not modified.
      *
      * @param activity {@link Activity} in which Casty object is created
      * @return the Casty object or null if Google Play Services is not on the device.
@@ -103,45 +176,59 @@ public class Casty {
 
         Casty casty = Casty.getInstance(activity);
 
-        if(casty.isValid()) {
-            Casty.addMiniController(activity);
+        if(casty.isValid() || casty.pending) {
+            casty.miniControllerEnabled = true;
         }
 
         return casty;
     }
 
-    private static void addMiniController(final Activity activity) {
-
-        mainHandler.post(new Runnable() {
-            @Override
-            public void run() {
-
-                if(activity.findViewById(R.id.casty_mini_controller) == null) {
-
-                    ViewGroup contentView = (ViewGroup) activity.findViewById(android.R.id.content);
-                    View rootView = contentView.getChildAt(0);
-
-                    if(rootView != null) {
+    /**
+     * Gets the headless Casty instance, e.g. for a foreground Service, an app widget, a notification
+     * action or a media button receiver. It has the same playback and listener API but no UI: it
+     * does not set up route buttons, attach the MiniController or launch the expanded controller,
+     * and does not discover devices unless {@link #setDiscoveryMode(int)} is called.
+     * Unlike Activity-scoped instances it receives session events as soon as it is created, until
+     * {@link #release()} is called. Commands are issued right away once Casty is warm, so call
+     * {@link #warmUp(Context)} from {@link Application#onCreate()} to keep the first one fast.
+     * <p>
+     * The instance is shared process-wide, so components handling one event at a time can call
+     * this per event without releasing it. Add listeners once, not per event, and only release it
+     * when no component uses it anymore; the next call then creates a new one.
+     * Must be used from the main thread.
+     *
+     * @param context any context, only the application context is retained
+     * @return the headless Casty object
+     */
+    public static Casty getHeadlessInstance(@NonNull Context context) {
 
-                        FrameLayout frameLayout = new FrameLayout(activity);
-                        frameLayout.setLayoutParams(new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT,
-                                FrameLayout.LayoutParams.MATCH_PARENT));
+        if(context == null) {
+            throw new NullPointerException("Context cannot be null");
+        }
 
-                        contentView.removeView(rootView);
+        if(headlessInstance != null) {
+            return headlessInstance;
+        }
 
-                        ViewGroup.LayoutParams oldRootParams = rootView.getLayoutParams();
-                        FrameLayout.LayoutParams rootParams = new FrameLayout.LayoutParams(oldRootParams.width,oldRootParams.height);
-                        rootView.setLayoutParams(rootParams);
+        final Casty casty = new Casty(context.getApplicationContext());
+        headlessInstance = casty;
 
-                        frameLayout.addView(rootView);
+        if(CastyCore.isWarmingUp()) {
+            casty.pending = true;
 
-                        activity.getLayoutInflater().inflate(R.layout.mini_controller,frameLayout,true);
-                        activity.setContentView(frameLayout);
-                    }
+            CastyCore.runWhenWarm(new Runnable() {
+                @Override
+                public void run() {
+                    casty.onWarmedUp();
                 }
+            });
+        }else if(CastyCore.isPlayServicesAvailable(context)) {
+            casty.isValid = true;
+            casty.core = CastyCore.getInstance(context);
+            casty.core.attach(casty);
+        }
 
-            }
-        });
+        return casty;
     }
 
     private Casty(Activity activity,boolean isValid) {
@@ -149,173 +236,127 @@ public class Casty {
         this.isValid = isValid;
 
         if(isValid) {
-            this.activity = activity;
-            this.castContext = CastContext.getSharedInstance(activity.getApplicationContext());
-            this.sessionManager = this.castContext.getSessionManager();
-            this.activity.getApplication().registerActivityLifecycleCallbacks(createActivityCallbacks());
+            this.activityReference = new WeakReference<>(activity);
+            this.core = CastyCore.getInstance(activity);
+            CastyLifecycle.register(activity, this);
         }
     }
 
-    private Application.ActivityLifecycleCallbacks createActivityCallbacks() {
-        return new Application.ActivityLifecycleCallbacks() {
-            @Override
-            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-
-                if(Casty.this.activity == activity) {
-                    registerCastStateListener();
-                }
-            }
-
-            @Override
-            public void onActivityStarted(Activity activity) {
-                //no-op
-            }
-
-            @Override
-            public void onActivityResumed(Activity activity) {
-
-                if (Casty.this.activity == activity) {
-                    updateCastSession();
-                    registerCastStateListener();
-                    registerRemoteClientListener();
-                    registerProgressListener();
-                    registerSessionManagerListener();
-                }
-            }
-
-            @Override
-            public void onActivityPaused(Activity activity) {
-
-                if (Casty.this.activity == activity) {
-                    unregisterCastStateListener();
-                    unregisterRemoteClientListener();
-                    unregisterProgressListener();
-                    unregisterSessionManagerListener();
-                }
-            }
-
-            @Override
-            public void onActivityStopped(Activity activity) {
-                //no-op
-            }
+    private Casty(Activity activity) {
+        this.pending = true;
+        this.activityReference = new WeakReference<>(activity);
+        CastyLifecycle.register(activity, this);
+    }
 
-            @Override
-            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-                //no-op
-            }
+    private Casty(Context applicationContext) {
+        this.applicationContext = applicationContext;
+        this.headless = true;
+        this.resumed = true;
+        this.discoveryMode = DISCOVERY_OFF;
+        this.expandedControllerActivity = null;
+    }
 
-            @Override
-            public void onActivityDestroyed(Activity activity) {
+    @Nullable
+    private Activity getActivity() {
+        return activityReference != null ? activityReference.get() : null;
+    }
 
-                if (Casty.this.activity == activity) {
-                    activity.getApplication().unregisterActivityLifecycleCallbacks(this);
-                    onConnectChangeListeners.clear();
-                    onPlaybackStateChangeListeners.clear();
-                }
-            }
-        };
+    @Nullable
+    private Context getContext() {
+        return headless ? applicationContext : getActivity();
     }
 
-    private final SessionManagerListener<CastSession> sessionManagerListener =  new SessionManagerListener<CastSession>() {
-        @Override
-        public void onSessionStarted(CastSession castSession, String s) {
+    private void onWarmedUp() {
 
-            activity.invalidateOptionsMenu();
-            onConnected(castSession);
-        }
+        pending = false;
 
-        @Override
-        public void onSessionEnded(CastSession castSession, int i) {
+        Context context = getContext();
 
-            activity.invalidateOptionsMenu();
-            onDisconnected(castSession);
+        if(context == null || !CastyCore.isPlayServicesAvailable(context)) {
+            clearListeners();
+            completePublishers();
+            return;
         }
 
-        @Override
-        public void onSessionResumed(CastSession castSession, boolean b) {
-
-            activity.invalidateOptionsMenu();
-            onConnected(castSession);
-        }
+        core = CastyCore.getInstance(context);
+        isValid = true;
 
-        @Override
-        public void onSessionStarting(CastSession castSession) {
-            //no-op
+        if(pendingMenu != null) {
+            setMediaRouteMenuItem(pendingMenu);
+            pendingMenu = null;
         }
 
-        @Override
-        public void onSessionStartFailed(CastSession castSession, int i) {
-            //no-op
+        if(pendingMediaRouteButton != null) {
+            attachMediaRouteButton(pendingMediaRouteButton);
+            pendingMediaRouteButton = null;
         }
 
-        @Override
-        public void onSessionEnding(CastSession castSession) {
-            //no-op
-        }
-
-        @Override
-        public void onSessionResuming(CastSession castSession, String s) {
-            //no-op
+        if(resumed) {
+            core.attach(this);
         }
+    }
 
-        @Override
-        public void onSessionResumeFailed(CastSession castSession, int i) {
-            //no-op
-        }
+    void onActivityResumed() {
+        resumed = true;
 
-        @Override
-        public void onSessionSuspended(CastSession castSession, int i) {
-            //no-op
+        if(isValid()) {
+            core.attach(this);
+            publishPlaybackState();
         }
-    };
-
-    private void registerSessionManagerListener() {
-        sessionManager.addSessionManagerListener(sessionManagerListener,CastSession.class);
     }
 
-    private void unregisterSessionManagerListener() {
-        sessionManager.removeSessionManagerListener(sessionManagerListener, CastSession.class);
-    }
-
-    private void registerRemoteClientListener() {
+    void onActivityPaused() {
+        resumed = false;
 
-        if(isRemoteClientLoaded()) {
-            remoteMediaClient.addListener(remoteClientListener);
+        if(isValid()) {
+            core.detach(this);
         }
     }
 
-    private void unregisterRemoteClientListener() {
+    /**
+     * Releases everything tied to the Activity, including listeners, which commonly are
+     * inner classes of it.
+     */
+    void onActivityDestroyed() {
 
-        if(isRemoteClientLoaded()) {
-            remoteMediaClient.removeListener(remoteClientListener);
+        if(isValid()) {
+            core.detach(this);
         }
-    }
-
-    private void registerCastStateListener() {
-        castContext.addCastStateListener(castStateListener);
-    }
 
-    private void unregisterCastStateListener() {
-        castContext.removeCastStateListener(castStateListener);
+        activityReference = null;
+        clearListeners();
+        completePublishers();
+        mediaRouteMenuItem = null;
+        mediaRouteButton = null;
+        pendingMenu = null;
+        pendingMediaRouteButton = null;
     }
 
-    private void registerProgressListener() {
+    /**
+     * Releases the headless instance: it stops receiving session events, its listeners are dropped
+     * and it becomes invalid. Has no effect on Activity-scoped instances, which are released when
+     * their Activity is destroyed.
+     */
+    public void release() {
 
-        if(isRemoteClientLoaded()) {
-            remoteMediaClient.addProgressListener(progressListener,1000);
+        if(!headless) {
+            return;
         }
-    }
 
-    private void unregisterProgressListener() {
+        onActivityDestroyed();
+        applicationContext = null;
+        resumed = false;
+        isValid = false;
 
-        if(isRemoteClientLoaded()) {
-            remoteMediaClient.removeProgressListener(progressListener);
+        if(headlessInstance == this) {
+            headlessInstance = null;
         }
     }
 
     /**
      * Sets the discovery menu item on a toolbar.
-     * Should be used in {@link Activity#onCreateOptionsMenu(Menu)}.
+     * Should be used in {@link Activity#onCreateOptionsMenu(Menu)}. It is safe to call repeatedly,
+     * the menu item is only inflated and set up if the menu does not have it yet.
      *
      * @param menu Menu in which MenuItem should be added
      */
@@ -325,12 +366,30 @@ public class Casty {
             throw new NullPointerException("Menu cannot be null");
         }
 
+        if(pending) {
+            pendingMenu = menu;
+        }
+
         if(isValid()) {
             mainHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    activity.getMenuInflater().inflate(R.menu.casty_discovery, menu);
-                    CastButtonFactory.setUpMediaRouteButton(activity, menu, R.id.casty_media_route_menu_item);
+
+                    Activity activity = getActivity();
+
+                    if(activity == null) {
+                        return;
+                    }
+
+                    MenuItem menuItem = menu.findItem(R.id.casty_media_route_menu_item);
+
+                    if(menuItem == null) {
+                        activity.getMenuInflater().inflate(R.menu.casty_discovery, menu);
+                    }
+
+                    if(menuItem == null || menuItem != mediaRouteMenuItem) {
+                        mediaRouteMenuItem = CastButtonFactory.setUpMediaRouteButton(activity, menu, R.id.casty_media_route_menu_item);
+                    }
                 }
             });
         }
@@ -348,11 +407,21 @@ public class Casty {
             throw new NullPointerException("MediaRouteButton cannot be null");
         }
 
+        if(pending) {
+            pendingMediaRouteButton = mediaRouteButton;
+        }
+
         if(isValid()) {
             mainHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    CastButtonFactory.setUpMediaRouteButton(activity, mediaRouteButton);
+
+                    Activity activity = getActivity();
+
+                    if(activity != null && Casty.this.mediaRouteButton != mediaRouteButton) {
+                        Casty.this.mediaRouteButton = mediaRouteButton;
+                        CastButtonFactory.setUpMediaRouteButton(activity, mediaRouteButton);
+                    }
                 }
             });
         }
@@ -368,7 +437,7 @@ public class Casty {
      * */
     public Casty setExpandedControllerActivity(@Nullable Class<? extends ExpandedControllerActivity> expandedControllerActivity) {
 
-        if(isValid()) {
+        if(isValid() || pending) {
             this.expandedControllerActivity = expandedControllerActivity;
         }
 
@@ -381,98 +450,234 @@ public class Casty {
      * @return true if a Google Cast is connected, false otherwise
      */
     public boolean isConnected() {
-        return castSession != null && castSession.isConnected();
+        return isValid() && core.isConnected();
     }
 
     /**
-     * Play content through Google Cast.
+     * Play content through Google Cast. If a session is still starting or resuming, the request
+     * is buffered and sent as soon as it connects. Content with {@link MediaData#POSITION_RESUME}
+     * as start position resumes from the one stored in the {@link ResumeStore}, if any.
      *
      * @param mediaData bundled options used to load the content on Google Cast
+     * @return result of the load request
      * */
-    public void play(@NonNull MediaData mediaData) {
+    public CastyResult play(@NonNull MediaData mediaData) {
 
         if(mediaData == null) {
             throw new NullPointerException("MediaData cannot be null");
         }
 
-        if(isValid() && isRemoteClientLoaded()) {
+        if(isValid() && core.canAcceptCommands()) {
 
-            remoteMediaClient.addListener(new RemoteMediaClient.Listener() {
-                @Override
-                public void onStatusUpdated() {
+            return core.load(this, mediaData, expandedControllerActivity);
+        }
 
-                    if(expandedControllerActivity != null){
-                        Utils.startExpandedControlsActivity(activity,expandedControllerActivity);
-                    }
+        return CastyResult.failed();
+    }
 
-                    remoteMediaClient.removeListener(this);
-                }
+    /**
+     * Play a playlist through Google Cast and advance through it automatically. Playlists may have
+     * tens of thousands of entries; only a small window around the current entry is sent to the
+     * receiver and it follows playback. Unlike {@link #play(MediaData)}, the request is not buffered
+     * while a session is starting.
+     *
+     * @param playlist entries to play, copied
+     * @param startIndex index of the entry to start with
+     * @return result of the queue load request
+     * */
+    public CastyResult playQueue(@NonNull List<MediaData> playlist, int startIndex) {
 
-                @Override
-                public void onMetadataUpdated() {
-                }
+        if(playlist == null) {
+            throw new NullPointerException("Playlist cannot be null");
+        }
 
-                @Override
-                public void onQueueStatusUpdated() {
-                }
+        if(startIndex < 0 || startIndex >= playlist.size()) {
+            throw new IndexOutOfBoundsException("Start index " + startIndex + " out of playlist of size " + playlist.size());
+        }
 
-                @Override
-                public void onPreloadStatusUpdated() {
-                }
+        if(isValid() && core.getRemoteMediaClient() != null) {
 
-                @Override
-                public void onSendingRemoteMediaRequest() {
-                }
+            return core.loadQueue(this, playlist, startIndex, expandedControllerActivity);
+        }
 
-                @Override
-                public void onAdBreakStatusUpdated() {
-                }
-            });
+        return CastyResult.failed();
+    }
+
+    /**
+     * Replaces the playlist loaded with {@link #playQueue(List, int)} without interrupting playback,
+     * e.g. after the user reordered or filtered it. Entries equal to current ones are kept; only the
+     * minimal set of remove, reorder and insert operations is sent to the receiver, in as few
+     * requests as possible. The current entry keeps playing and stays in the playlist.
+     *
+     * @param playlist the new entries, copied
+     * @return result of the queue edit
+     * */
+    public CastyResult updateQueue(@NonNull List<MediaData> playlist) {
+
+        if(playlist == null) {
+            throw new NullPointerException("Playlist cannot be null");
+        }
+
+        if(isValid()) {
+            return core.getQueue().update(playlist);
+        }
+
+        return CastyResult.failed();
+    }
+
+    /**
+     * Skip to an entry of the playlist loaded with {@link #playQueue(List, int)}.
+     *
+     * @param index index of the entry
+     * @return result of the request
+     * */
+    public CastyResult skipToQueueItem(int index) {
 
-          remoteMediaClient.load(mediaData.createMediaInfo(),mediaData.autoPlay,mediaData.position);
+        if(isValid()) {
+            return core.getQueue().jumpTo(index);
         }
+
+        return CastyResult.failed();
+    }
+
+    /**
+     * Skip to the next entry of the playlist loaded with {@link #playQueue(List, int)}.
+     *
+     * @return result of the request, failed if there is no next entry
+     * */
+    public CastyResult skipToNext() {
+        return skipToQueueItem(getQueueIndex() + 1);
+    }
+
+    /**
+     * Skip to the previous entry of the playlist loaded with {@link #playQueue(List, int)}.
+     *
+     * @return result of the request, failed if there is no previous entry
+     * */
+    public CastyResult skipToPrevious() {
+
+        int queueIndex = getQueueIndex();
+        return queueIndex > 0 ? skipToQueueItem(queueIndex - 1) : CastyResult.failed();
+    }
+
+    /**
+     * Gets the index of the current playlist entry.
+     *
+     * @return the current index or -1 if no playlist is loaded
+     * */
+    public int getQueueIndex() {
+        return isValid() ? core.getQueue().getCurrentIndex() : -1;
+    }
+
+    /**
+     * Gets the size of the playlist loaded with {@link #playQueue(List, int)}.
+     *
+     * @return number of entries, 0 if no playlist is loaded
+     * */
+    public int getQueueSize() {
+        return isValid() ? core.getQueue().size() : 0;
+    }
+
+    /**
+     * Enables gapless playback of playlists: the receiver loads the next entry the given number of
+     * seconds before the current one ends. Affects entries sent to the receiver from now on, so
+     * set it before {@link #playQueue(List, int)}. Transition gaps are reported in {@link #getMetrics()}.
+     *
+     * @param seconds preload time in seconds, 0 to disable preloading (the default)
+     * @return Casty instance
+     * */
+    public Casty setQueuePreloadTime(double seconds) {
+
+        if(seconds < 0) {
+            throw new IllegalArgumentException("Preload time cannot be negative");
+        }
+
+        if(isValid()) {
+            core.getQueue().setPreloadTime(seconds);
+        }
+
+        return this;
+    }
+
+    /**
+     * Gets the playlist entry the receiver has preloaded.
+     *
+     * @return index of the preloaded entry or -1 if none
+     * */
+    public int getPreloadedQueueIndex() {
+        return isValid() ? core.getQueue().getPreloadedIndex() : -1;
     }
 
     /**
      * Seek to a specified position for the currently casted content.
+     * Seeks issued in quick succession, e.g. while scrubbing, are coalesced and only the last one is sent.
      *
      * @param position seek position
+     * @return result of the seek request
      * */
-    public void seek(long position) {
+    public CastyResult seek(long position) {
 
-        if(isValid() && isRemoteClientLoaded()) {
-            remoteMediaClient.seek(position);
+        if(isValid() && core.canAcceptCommands()) {
+            return core.getCommandPipeline().seek(position);
         }
+
+        return CastyResult.failed();
     }
 
     /**
      * Stop playback for the currently casted content.
+     *
+     * @return result of the stop request
      * */
-    public void stop() {
+    public CastyResult stop() {
 
-        if(isValid() && isRemoteClientLoaded()) {
-            remoteMediaClient.stop();
+        if(isValid() && core.canAcceptCommands()) {
+            return core.getCommandPipeline().stop();
         }
+
+        return CastyResult.failed();
     }
 
     /**
      * Pause playback for the currently casted content.
+     *
+     * @return result of the pause request
+     * */
+    public CastyResult pause() {
+
+        if(isValid() && core.canAcceptCommands()) {
+            return core.getCommandPipeline().pause();
+        }
+
+        return CastyResult.failed();
+    }
+
+    /**
+     * Resume playback for the currently casted content.
+     *
+     * @return result of the play request
      * */
-    public void pause() {
+    public CastyResult resume() {
 
-        if(isValid() && isRemoteClientLoaded()) {
-            remoteMediaClient.pause();
+        if(isValid() && core.canAcceptCommands()) {
+            return core.getCommandPipeline().play();
         }
+
+        return CastyResult.failed();
     }
 
     /**
      * Toggle playback between play and pause for the currently casted content.
+     *
+     * @return result of the resulting play or pause request
      * */
-    public void togglePlayPause() {
+    public CastyResult togglePlayPause() {
 
-        if(isValid() && isRemoteClientLoaded()) {
-            remoteMediaClient.togglePlayback();
+        if(isValid() && core.canAcceptCommands()) {
+            return core.getCommandPipeline().togglePlayPause();
         }
+
+        return CastyResult.failed();
     }
 
     /**
@@ -482,7 +687,7 @@ public class Casty {
      * */
     public boolean isPlaying() {
 
-        return isValid() && isRemoteClientLoaded() && remoteMediaClient.isPlaying();
+        return getPlaybackSnapshot().isPlaying();
     }
 
     /**
@@ -492,7 +697,7 @@ public class Casty {
      * */
     public boolean isBuffering() {
 
-        return isValid() && isRemoteClientLoaded() && remoteMediaClient.isBuffering();
+        return getPlaybackSnapshot().isBuffering();
     }
 
     /**
@@ -501,7 +706,7 @@ public class Casty {
      * @return true if the Google Cast device has paused the loaded content
      * */
     public boolean isPaused() {
-        return isValid() && isRemoteClientLoaded() && remoteMediaClient.isPaused();
+        return getPlaybackSnapshot().isPaused();
     }
 
     /**
@@ -511,8 +716,7 @@ public class Casty {
      * */
     public boolean isIdle() {
 
-        return isValid() && isRemoteClientLoaded()
-                && remoteMediaClient.getPlayerState() == MediaStatus.PLAYER_STATE_IDLE;
+        return getPlaybackSnapshot().isIdle();
     }
 
     /**
@@ -522,7 +726,111 @@ public class Casty {
      * */
     public boolean isLiveStream() {
 
-        return isValid() && isRemoteClientLoaded() && remoteMediaClient.isLiveStream();
+        return getPlaybackSnapshot().isLiveStream();
+    }
+
+    /**
+     * Gets the latest playback state published by the receiver. The snapshot is immutable and
+     * can be read from any thread; {@link PlaybackSnapshot#getChangedFields()} tells what changed
+     * in the update that triggered {@link OnPlaybackStateChangeListener#onPlaybackStateChanged(Casty)}.
+     *
+     * @return the current snapshot, never null
+     * */
+    @NonNull
+    public PlaybackSnapshot getPlaybackSnapshot() {
+
+        return isValid() ? core.getPlaybackSnapshot() : PlaybackSnapshot.EMPTY;
+    }
+
+    /**
+     * Gets the playback position extrapolated from the last receiver update. It is cheap enough
+     * to be called on every frame, e.g. to drive a seek bar smoothly between progress updates.
+     *
+     * @return the estimated playback position in milliseconds, 0 if nothing is loaded
+     * */
+    public long getApproximatePosition() {
+
+        return isValid() && isRemoteClientLoaded() ? core.getPlaybackClock().getPosition() : 0;
+    }
+
+    /**
+     * Tells Casty that the user is scrubbing, so progress is polled at a fine interval
+     * until scrubbing ends.
+     *
+     * @param scrubbing true while the user drags a seek bar
+     * @return Casty instance
+     * */
+    public Casty setScrubbing(boolean scrubbing) {
+
+        if(isValid() && this.scrubbing != scrubbing) {
+            this.scrubbing = scrubbing;
+            core.updateProgressInterval();
+        }
+
+        return this;
+    }
+
+    /**
+     * Sets how this handle discovers cast devices. Discovery only runs while at least one handle
+     * is resumed, so it is off in the background regardless of the mode.
+     *
+     * @param discoveryMode one of {@link #DISCOVERY_ACTIVE}, {@link #DISCOVERY_PASSIVE} or {@link #DISCOVERY_OFF}
+     * @return Casty instance
+     * */
+    public Casty setDiscoveryMode(@DiscoveryMode int discoveryMode) {
+
+        if(this.discoveryMode == discoveryMode) {
+            return this;
+        }
+
+        this.discoveryMode = discoveryMode;
+
+        if(discoveryMode == DISCOVERY_OFF) {
+            lastCastAvailable = null;
+        }
+
+        if(isValid() && resumed) {
+            core.updateDiscovery();
+        }
+
+        return this;
+    }
+
+    @DiscoveryMode
+    public int getDiscoveryMode() {
+        return discoveryMode;
+    }
+
+    boolean isScrubbing() {
+        return scrubbing;
+    }
+
+    boolean hasPlaybackStateListeners() {
+        return !onPlaybackStateChangeListeners.isEmpty()
+                || (playbackStatePublisher != null && playbackStatePublisher.hasSubscribers())
+                || (progressPublisher != null && progressPublisher.hasSubscribers());
+    }
+
+    /**
+     * Gets the number of playback commands that were coalesced or dropped as redundant
+     * instead of being sent to the receiver.
+     *
+     * @return the number of collapsed commands in this process
+     * */
+    public long getCollapsedCommandCount() {
+
+        return isValid() ? core.getMetrics().getCollapsedCommandCount() : 0;
+    }
+
+    /**
+     * Gets the process-wide cast performance metrics.
+     *
+     * @return the metrics or null if this instance is not valid
+     * */
+    @Nullable
+    public CastyMetrics getMetrics() {
+
+        return isValid() ? core.getMetrics() : null;
     }
 
     /**
@@ -535,181 +843,369 @@ public class Casty {
     }
 
     private boolean isRemoteClientLoaded() {
-        return remoteMediaClient != null;
+        return core.getRemoteMediaClient() != null;
     }
 
     /**
-     * Attaches an {@link OnConnectChangeListener} to Casty
+     * Attaches an {@link OnConnectChangeListener} to Casty. Its callbacks run inline on the main thread.
      *
      * @param onConnectChangeListener Connect change callback
      * @return Casty instance
      */
     public Casty addOnConnectChangeListener(@NonNull OnConnectChangeListener onConnectChangeListener) {
+        return addOnConnectChangeListener(onConnectChangeListener, CastyDispatcher.INLINE);
+    }
+
+    /**
+     * Attaches an {@link OnConnectChangeListener} to Casty whose callbacks are delivered by a
+     * {@link CastyDispatcher}. A listener is only added once, with the dispatcher it was first added with.
+     *
+     * @param onConnectChangeListener Connect change callback
+     * @param dispatcher where and how often callbacks are delivered
+     * @return Casty instance
+     */
+    public Casty addOnConnectChangeListener(@NonNull OnConnectChangeListener onConnectChangeListener,
+                                            @NonNull CastyDispatcher dispatcher) {
 
         if(onConnectChangeListener == null) {
             throw new NullPointerException("OnConnectChangeListener is null");
         }
 
-        if(isValid()) {
-
-            if(onConnectChangeListeners.contains(onConnectChangeListener)) {
-                return this;
-            }
+        if(dispatcher == null) {
+            throw new NullPointerException("CastyDispatcher cannot be null");
+        }
 
-            onConnectChangeListeners.add(onConnectChangeListener);
+        if((isValid() || pending) && findListener(onConnectChangeListeners, onConnectChangeListener) == null) {
+            onConnectChangeListeners.add(dispatcher == CastyDispatcher.INLINE ? onConnectChangeListener
+                    : new ConflatedListener.ConnectChange(onConnectChangeListener, dispatcher));
         }
 
         return this;
     }
 
     /**
-     * Detaches an {@link OnConnectChangeListener} from Casty
+     * Detaches an {@link OnConnectChangeListener} from Casty. Pending deliveries are dropped.
      *
      * @param onConnectChangeListener Connect change callback
      * @return Casty instance
      */
     public Casty removeOnConnectChangeListener(@NonNull OnConnectChangeListener onConnectChangeListener) {
 
-        if(isValid() && onConnectChangeListener != null) {
-            onConnectChangeListeners.remove(onConnectChangeListener);
+        if(onConnectChangeListener != null) {
+            removeListener(onConnectChangeListeners, onConnectChangeListener);
         }
 
         return this;
     }
 
     /**
-     * Attaches an {@link OnPlaybackStateChangeListener} to Casty
+     * Attaches an {@link OnPlaybackStateChangeListener} to Casty. Its callbacks run inline on the main thread.
      *
      * @param onPlaybackStateChangeListener Playback state change listener
      * @return Casty instance
      */
     public Casty addOnPlaybackStateChangeListener(@NonNull OnPlaybackStateChangeListener onPlaybackStateChangeListener) {
+        return addOnPlaybackStateChangeListener(onPlaybackStateChangeListener, CastyDispatcher.INLINE);
+    }
+
+    /**
+     * Attaches an {@link OnPlaybackStateChangeListener} to Casty whose callbacks are delivered by a
+     * {@link CastyDispatcher}, e.g. {@link CastyDispatcher#MAIN_FRAME} for a seek bar or an executor
+     * for analytics. A listener is only added once, with the dispatcher it was first added with.
+     *
+     * @param onPlaybackStateChangeListener Playback state change listener
+     * @param dispatcher where and how often callbacks are delivered
+     * @return Casty instance
+     */
+    public Casty addOnPlaybackStateChangeListener(@NonNull OnPlaybackStateChangeListener onPlaybackStateChangeListener,
+                                                  @NonNull CastyDispatcher dispatcher) {
 
         if(onPlaybackStateChangeListener == null) {
             throw new NullPointerException("onPlaybackStateChangeListener is null");
         }
 
-        if(isValid()) {
+        if(dispatcher == null) {
+            throw new NullPointerException("CastyDispatcher cannot be null");
+        }
 
-            if(onPlaybackStateChangeListeners.contains(onPlaybackStateChangeListener)) {
-                return this;
-            }
+        if(!(isValid() || pending) || findListener(onPlaybackStateChangeListeners, onPlaybackStateChangeListener) != null) {
+            return this;
+        }
 
-            onPlaybackStateChangeListeners.add(onPlaybackStateChangeListener);
+        boolean added = onPlaybackStateChangeListeners.add(dispatcher == CastyDispatcher.INLINE ? onPlaybackStateChangeListener
+                : new ConflatedListener.PlaybackState(onPlaybackStateChangeListener, dispatcher));
+
+        if(added && isValid()) {
+            core.updateProgressInterval();
         }
 
         return this;
     }
 
     /**
-     * Detaches an {@link OnPlaybackStateChangeListener} from Casty
+     * Detaches an {@link OnPlaybackStateChangeListener} from Casty. Pending deliveries are dropped.
      *
      * @param onPlaybackStateChangeListener playback state change listener
      * @return Casty instance
      */
     public Casty removeOnPlaybackStateChangeListener(@NonNull OnPlaybackStateChangeListener onPlaybackStateChangeListener) {
 
-        if(isValid() && onPlaybackStateChangeListener != null) {
-            onPlaybackStateChangeListeners.remove(onPlaybackStateChangeListener);
+        if(onPlaybackStateChangeListener == null) {
+            return this;
+        }
+
+        boolean removed = removeListener(onPlaybackStateChangeListeners, onPlaybackStateChangeListener);
+
+        if(removed && isValid()) {
+            core.updateProgressInterval();
         }
 
         return this;
     }
 
-    private void onConnected(CastSession castSession) {
-        this.castSession = castSession;
+    /**
+     * Finds a registered listener, which is either the listener itself or its {@link ConflatedListener}.
+     */
+    private static <T> T findListener(ListenerRegistry<T> registry, T listener) {
+
+        for (T registered : registry.snapshot()) {
 
-        unregisterRemoteClientListener();
-        unregisterProgressListener();
-        this.remoteMediaClient = castSession.getRemoteMediaClient();
-        registerRemoteClientListener();
-        registerProgressListener();
+            if(registered == listener || (registered instanceof ConflatedListener
+                    && ((ConflatedListener<?>) registered).listener == listener)) {
+                return registered;
+            }
+        }
 
-        String castDeviceName = Utils.getCastDeviceName(castSession);
+        return null;
+    }
 
-        for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners) {
-            onConnectChangeListener.onConnected(castDeviceName);
+    private static <T> boolean removeListener(ListenerRegistry<T> registry, T listener) {
+
+        T registered = findListener(registry, listener);
+
+        if(registered == null || !registry.remove(registered)) {
+            return false;
+        }
+
+        if(registered instanceof ConflatedListener) {
+            ((ConflatedListener<?>) registered).cancel();
         }
+
+        return true;
     }
 
-    private void onDisconnected(CastSession castSession) {
-        this.castSession = null;
+    private void clearListeners() {
 
-        unregisterRemoteClientListener();
-        unregisterProgressListener();
-        this.remoteMediaClient = null;
+        for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners.snapshot()) {
 
-        String castDeviceName = Utils.getCastDeviceName(castSession);
+            if(onConnectChangeListener instanceof ConflatedListener) {
+                ((ConflatedListener<?>) onConnectChangeListener).cancel();
+            }
+        }
 
-        for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners) {
-            onConnectChangeListener.onDisconnected(castDeviceName);
+        for (OnPlaybackStateChangeListener onPlaybackStateChangeListener : onPlaybackStateChangeListeners.snapshot()) {
+
+            if(onPlaybackStateChangeListener instanceof ConflatedListener) {
+                ((ConflatedListener<?>) onPlaybackStateChangeListener).cancel();
+            }
         }
+
+        onConnectChangeListeners.clear();
+        onPlaybackStateChangeListeners.clear();
     }
 
-    private final CastStateListener castStateListener = new CastStateListener() {
-        @Override
-        public void onCastStateChanged(int state) {
+    /**
+     * Observes the connection state. New subscribers get the current state first.
+     * Must be called from the main thread.
+     *
+     * @return publisher of connection states
+     */
+    public CastyPublisher<ConnectionState> observeConnection() {
 
-            boolean castAvailable =  state != CastState.NO_DEVICES_AVAILABLE && isValid();
+        if(connectionPublisher == null) {
+            connectionPublisher = new CastyPublisher<>(null);
 
-            for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners) {
-                onConnectChangeListener.onDiscovery(castAvailable);
+            if(isValid() && resumed) {
+                connectionPublisher.publish(new ConnectionState(core.isConnected(), core.getCastDeviceName()));
             }
         }
-    };
 
-    private final RemoteMediaClient.Listener remoteClientListener = new RemoteMediaClient.Listener() {
-        @Override
-        public void onStatusUpdated() {
+        return connectionPublisher;
+    }
+
+    /**
+     * Observes device availability, as reported to {@link OnConnectChangeListener#onDiscovery(boolean)},
+     * so nothing is published while discovery is {@link #DISCOVERY_OFF}. New subscribers get the
+     * current availability first. Must be called from the main thread.
+     *
+     * @return publisher of availability, true if a cast device is available
+     */
+    public CastyPublisher<Boolean> observeDiscovery() {
 
-            for (OnPlaybackStateChangeListener onPlaybackStateChangeListener : onPlaybackStateChangeListeners) {
-                onPlaybackStateChangeListener.onPlaybackStateChanged(Casty.this);
+        if(discoveryPublisher == null) {
+            discoveryPublisher = new CastyPublisher<>(null);
+
+            if(lastCastAvailable != null) {
+                discoveryPublisher.publish(lastCastAvailable);
             }
         }
 
-        @Override
-        public void onMetadataUpdated() {
+        return discoveryPublisher;
+    }
+
+    /**
+     * Observes the playback state. New subscribers get the current snapshot first.
+     * Must be called from the main thread.
+     *
+     * @return publisher of playback snapshots
+     */
+    public CastyPublisher<PlaybackSnapshot> observePlaybackState() {
+
+        if(playbackStatePublisher == null) {
+            playbackStatePublisher = new CastyPublisher<>(subscribersChangedRunnable);
+            publishPlaybackState();
         }
 
-        @Override
-        public void onQueueStatusUpdated() {
+        return playbackStatePublisher;
+    }
+
+    /**
+     * Observes playback progress. Progress is polled from the receiver while this publisher has
+     * subscribers and content plays. New subscribers get the latest progress first.
+     * Must be called from the main thread.
+     *
+     * @return publisher of progress ticks
+     */
+    public CastyPublisher<PlaybackProgress> observeProgress() {
+
+        if(progressPublisher == null) {
+            progressPublisher = new CastyPublisher<>(subscribersChangedRunnable);
+
+            if(isValid() && isRemoteClientLoaded()) {
+                progressPublisher.publish(new PlaybackProgress(getApproximatePosition(), getPlaybackSnapshot().getStreamDuration()));
+            }
         }
 
-        @Override
-        public void onPreloadStatusUpdated() {
+        return progressPublisher;
+    }
+
+    private void publishPlaybackState() {
+
+        if(playbackStatePublisher != null && isValid()) {
+            playbackStatePublisher.publish(core.getPlaybackSnapshot());
         }
+    }
 
-        @Override
-        public void onSendingRemoteMediaRequest() {
+    private void completePublishers() {
+
+        if(connectionPublisher != null) {
+            connectionPublisher.complete();
         }
 
-        @Override
-        public void onAdBreakStatusUpdated() {
+        if(discoveryPublisher != null) {
+            discoveryPublisher.complete();
         }
-    };
 
-    private final RemoteMediaClient.ProgressListener progressListener = new RemoteMediaClient.ProgressListener() {
+        if(playbackStatePublisher != null) {
+            playbackStatePublisher.complete();
+        }
+
+        if(progressPublisher != null) {
+            progressPublisher.complete();
+        }
+    }
+
+    /**
+     * Re-evaluates progress polling on the main thread once subscribers of the playback publishers
+     * changed, which may happen on any thread.
+     */
+    private final Runnable subscribersChangedRunnable = new Runnable() {
         @Override
-        public void onProgressUpdated(long progress, long duration) {
+        public void run() {
 
-            for (OnPlaybackStateChangeListener onPlaybackStateChangeListener : onPlaybackStateChangeListeners) {
-                onPlaybackStateChangeListener.onProgressChanged(progress,duration);
-            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+
+                    if(isValid()) {
+                        core.updateProgressInterval();
+                    }
+                }
+            });
         }
     };
 
-    private void updateCastSession() {
+    void startExpandedController(Class<? extends ExpandedControllerActivity> expandedControllerActivity) {
+
+        Activity activity = getActivity();
+
+        if(activity != null) {
+            Utils.startExpandedControlsActivity(activity, expandedControllerActivity);
+        }
+    }
+
+    void dispatchConnected(String castDeviceName) {
+
+        Activity activity = getActivity();
+
+        if(miniControllerEnabled && activity != null) {
+            MiniControllerOverlay.attach(activity);
+        }
+
+        for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners.snapshot()) {
+            onConnectChangeListener.onConnected(castDeviceName);
+        }
+
+        if(connectionPublisher != null) {
+            connectionPublisher.publish(new ConnectionState(true, castDeviceName));
+        }
+    }
+
+    void dispatchDisconnected(String castDeviceName) {
+
+        for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners.snapshot()) {
+            onConnectChangeListener.onDisconnected(castDeviceName);
+        }
+
+        if(connectionPublisher != null) {
+            connectionPublisher.publish(new ConnectionState(false, castDeviceName));
+        }
+    }
+
+    void dispatchDiscovery(boolean castAvailable) {
+
+        if(discoveryMode == DISCOVERY_OFF || (lastCastAvailable != null && lastCastAvailable == castAvailable)) {
+            return;
+        }
+
+        lastCastAvailable = castAvailable;
+
+        for (OnConnectChangeListener onConnectChangeListener : onConnectChangeListeners.snapshot()) {
+            onConnectChangeListener.onDiscovery(castAvailable);
+        }
+
+        if(discoveryPublisher != null) {
+            discoveryPublisher.publish(castAvailable);
+        }
+    }
+
+    void dispatchPlaybackStateChanged() {
+
+        for (OnPlaybackStateChangeListener onPlaybackStateChangeListener : onPlaybackStateChangeListeners.snapshot()) {
+            onPlaybackStateChangeListener.onPlaybackStateChanged(this);
+        }
+
+        publishPlaybackState();
+    }
 
-        CastSession newCastSession = sessionManager.getCurrentCastSession();
+    void dispatchProgressChanged(long progress, long duration) {
 
-        if(castSession != newCastSession) {
-            castSession = newCastSession;
+        for (OnPlaybackStateChangeListener onPlaybackStateChangeListener : onPlaybackStateChangeListeners.snapshot()) {
+            onPlaybackStateChangeListener.onProgressChanged(progress,duration);
         }
 
-        if(castSession != null && castSession.isConnected()) {
-            onConnected(castSession);
-        }else {
-            onDisconnected(newCastSession);
+        if(progressPublisher != null) {
+            progressPublisher.publish(new PlaybackProgress(progress, duration));
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,642 @@
+package pl.droidsonroids.casty;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.CastContext;
+import com.google.android.gms.cast.framework.CastSession;
+import com.google.android.gms.cast.framework.SessionManager;
+import com.google.android.gms.cast.framework.SessionManagerListener;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.google.android.gms.cast.framework.media.widget.ExpandedControllerActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide session engine shared by all {@link Casty} handles. It owns the {@link CastSession}
+ * and {@link RemoteMediaClient} wiring, which is set up once per session instead of once per screen.
+ * Handles only subscribe while their Activity is resumed. Must be used from the main thread.
+ */
+final class CastyCore {
+
+    static final long PROGRESS_INTERVAL_OFF = 0;
+    static final long PROGRESS_INTERVAL_COARSE = 1000;
+    static final long PROGRESS_INTERVAL_FINE = 100;
+
+    private static final long POSITION_JUMP_THRESHOLD = 1000;
+
+    private static CastyCore instance;
+    private static volatile Boolean playServicesAvailable;
+    private static boolean warmingUp;
+    private static final ArrayList<Runnable> warmUpCallbacks = new ArrayList<>();
+
+    private final CastContext castContext;
+    private final SessionManager sessionManager;
+    private CastSession castSession;
+    private RemoteMediaClient remoteMediaClient;
+    private final ListenerRegistry<Casty> handles = new ListenerRegistry<>(new Casty[0]);
+    private final PlaybackClock playbackClock = new PlaybackClock();
+    private final CastyMetrics metrics = new CastyMetrics();
+    private final CommandPipeline commandPipeline = new CommandPipeline(this, metrics);
+    private final DiscoveryScheduler discoveryScheduler;
+    private final ResumeStore resumeStore;
+    private final CastyQueue queue = new CastyQueue(this, commandPipeline, metrics);
+    private final SessionRecovery sessionRecovery;
+    private long progressInterval = PROGRESS_INTERVAL_OFF;
+    private volatile PlaybackSnapshot playbackSnapshot = PlaybackSnapshot.EMPTY;
+    private LoadTransaction loadTransaction;
+    private boolean sessionStarting;
+
+    /**
+     * Gets the process-wide core, creating it on first use.
+     *
+     * @param context any context, only the application context is retained
+     * @return the shared CastyCore
+     */
+    static CastyCore getInstance(Context context) {
+
+        if(instance == null) {
+            instance = new CastyCore(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Checks Google Play Services availability. The check runs once per process, it is safe to call
+     * from any thread.
+     *
+     * @param context any context
+     * @return true if Google Play Services are available
+     */
+    static boolean isPlayServicesAvailable(Context context) {
+
+        Boolean available = playServicesAvailable;
+
+        if(available == null) {
+            synchronized (CastyCore.class) {
+                available = playServicesAvailable;
+
+                if(available == null) {
+                    available = Utils.isPlayServicesAvailable(context.getApplicationContext());
+                    playServicesAvailable = available;
+                }
+            }
+        }
+
+        return available;
+    }
+
+    /**
+     * Starts the off-critical-path initialization: the availability check runs on a background
+     * thread, the core and {@link CastContext} are created on the main thread once it is idle.
+     * Does nothing if the core exists or warm-up is already running. Must be called from the main thread.
+     *
+     * @param context any context, only the application context is retained
+     */
+    static void warmUp(Context context) {
+
+        if(instance != null || warmingUp) {
+            return;
+        }
+
+        warmingUp = true;
+
+        final Context applicationContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                isPlayServicesAvailable(applicationContext);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                            @Override
+                            public boolean queueIdle() {
+                                finishWarmUp(applicationContext);
+                                return false;
+                            }
+                        });
+                    }
+                });
+            }
+        }, "casty-warm-up");
+        thread.start();
+    }
+
+    static boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * Runs a callback on the main thread once warm-up finishes. Must be called while warming up.
+     *
+     * @param callback callback to run
+     */
+    static void runWhenWarm(Runnable callback) {
+        warmUpCallbacks.add(callback);
+    }
+
+    private static void finishWarmUp(Context context) {
+
+        if(isPlayServicesAvailable(context)) {
+            getInstance(context);
+        }
+
+        warmingUp = false;
+
+        Runnable[] callbacks = warmUpCallbacks.toArray(new Runnable[warmUpCallbacks.size()]);
+        warmUpCallbacks.clear();
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private CastyCore(Context context) {
+        this.castContext = CastContext.getSharedInstance(context);
+        this.sessionManager = castContext.getSessionManager();
+        this.sessionManager.addSessionManagerListener(sessionManagerListener, CastSession.class);
+        this.discoveryScheduler = new DiscoveryScheduler(context, castContext, handles, metrics);
+        this.resumeStore = ResumeStore.getInstance(context);
+        this.sessionRecovery = new SessionRecovery(context, this, sessionManager, metrics);
+        updateCastSession();
+    }
+
+    /**
+     * Subscribes a handle to session events and brings it up to date with the current session.
+     *
+     * @param casty handle to subscribe
+     */
+    void attach(Casty casty) {
+
+        if(!handles.add(casty)) {
+            return;
+        }
+
+        updateCastSession();
+        updateProgressInterval();
+
+        String castDeviceName = Utils.getCastDeviceName(castSession);
+
+        if(isConnected()) {
+            casty.dispatchConnected(castDeviceName);
+        }else {
+            casty.dispatchDisconnected(castDeviceName);
+        }
+
+        updateDiscovery();
+
+        if(casty.getDiscoveryMode() != Casty.DISCOVERY_OFF) {
+            casty.dispatchDiscovery(discoveryScheduler.isCastAvailable());
+        }
+    }
+
+    /**
+     * Unsubscribes a handle from session events. Remote listeners stay attached.
+     *
+     * @param casty handle to unsubscribe
+     */
+    void detach(Casty casty) {
+
+        if(handles.remove(casty)) {
+            updateProgressInterval();
+            updateDiscovery();
+        }
+    }
+
+    /**
+     * Re-evaluates discovery after a handle changed its discovery mode or the session changed.
+     */
+    void updateDiscovery() {
+        discoveryScheduler.update(isConnected());
+    }
+
+    boolean isConnected() {
+        return castSession != null && castSession.isConnected();
+    }
+
+    String getCastDeviceName() {
+        return Utils.getCastDeviceName(castSession);
+    }
+
+    RemoteMediaClient getRemoteMediaClient() {
+        return remoteMediaClient;
+    }
+
+    boolean isSessionStarting() {
+        return sessionStarting;
+    }
+
+    /**
+     * Checks if commands can be issued, either right away or buffered until a starting or resuming
+     * session connects.
+     *
+     * @return true if a session is connected, starting or resuming
+     */
+    boolean canAcceptCommands() {
+        return remoteMediaClient != null || sessionStarting;
+    }
+
+    PlaybackClock getPlaybackClock() {
+        return playbackClock;
+    }
+
+    PlaybackSnapshot getPlaybackSnapshot() {
+        return playbackSnapshot;
+    }
+
+    CommandPipeline getCommandPipeline() {
+        return commandPipeline;
+    }
+
+    CastyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Loads media as a new {@link LoadTransaction}, superseding an unfinished one.
+     *
+     * @param origin handle that issued the load, used to launch the expanded controller
+     * @param mediaData media to load
+     * @param expandedControllerActivity controller to launch once the receiver answers the load, may be null
+     * @return result of the load request
+     */
+    CastyResult load(Casty origin, MediaData mediaData, Class<? extends ExpandedControllerActivity> expandedControllerActivity) {
+
+        mediaData = withStartPosition(mediaData);
+        startLoadTransaction(origin, expandedControllerActivity);
+        queue.clear();
+        sessionRecovery.onLoad(mediaData);
+
+        CastyResult result = commandPipeline.load(mediaData);
+        loadTransaction.setResult(result);
+        return result;
+    }
+
+    /**
+     * Loads a playlist, of which only a window around the start entry is sent to the receiver.
+     *
+     * @param origin handle which issued the load
+     * @param playlist entries to play
+     * @param startIndex index of the entry to start with
+     * @param expandedControllerActivity controller to launch once the start entry is loaded, may be null
+     * @return result of the queue load request
+     */
+    CastyResult loadQueue(Casty origin, List<MediaData> playlist, int startIndex,
+                          Class<? extends ExpandedControllerActivity> expandedControllerActivity) {
+        return loadQueue(origin, playlist, startIndex, getStartPosition(playlist.get(startIndex)), expandedControllerActivity);
+    }
+
+    /**
+     * Loads a playlist like {@link #loadQueue(Casty, List, int, Class)}, starting at a given position.
+     *
+     * @param startPosition position to start the start entry at in milliseconds
+     */
+    CastyResult loadQueue(Casty origin, List<MediaData> playlist, int startIndex, long startPosition,
+                          Class<? extends ExpandedControllerActivity> expandedControllerActivity) {
+
+        startLoadTransaction(origin, expandedControllerActivity);
+        sessionRecovery.onLoad(null);
+
+        CastyResult result = queue.load(playlist, startIndex, startPosition);
+        loadTransaction.setResult(result);
+        return result;
+    }
+
+    CastyQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Gets the position to start media at: its own, or the one stored in the {@link ResumeStore}
+     * if it asks to resume.
+     *
+     * @param mediaData media to start
+     * @return start position in milliseconds
+     */
+    long getStartPosition(MediaData mediaData) {
+
+        if(mediaData.getPosition() != MediaData.POSITION_RESUME) {
+            return mediaData.getPosition();
+        }
+
+        return mediaData.getUrl() != null ? resumeStore.getPosition(mediaData.getUrl()) : 0;
+    }
+
+    private MediaData withStartPosition(MediaData mediaData) {
+
+        long position = getStartPosition(mediaData);
+        return position != mediaData.getPosition() ? mediaData.buildUpon().setPosition(position).build() : mediaData;
+    }
+
+    private void recordResumePosition(long position, long duration) {
+
+        PlaybackSnapshot snapshot = playbackSnapshot;
+        String contentId = snapshot.getContentId();
+
+        if(contentId == null || snapshot.isLiveStream()) {
+            return;
+        }
+
+        if(snapshot.isIdle()) {
+
+            if(snapshot.getIdleReason() == MediaStatus.IDLE_REASON_FINISHED) {
+                resumeStore.remove(contentId);
+            }
+
+            return;
+        }
+
+        resumeStore.record(contentId, position, duration);
+    }
+
+    private void startLoadTransaction(Casty origin, Class<? extends ExpandedControllerActivity> expandedControllerActivity) {
+
+        if(loadTransaction != null && !loadTransaction.isFinished()) {
+            loadTransaction.supersede();
+        }
+
+        loadTransaction = new LoadTransaction(origin, expandedControllerActivity, metrics);
+    }
+
+    /**
+     * Re-evaluates how often progress is polled from the receiver. Polling is off when nobody
+     * listens or the player is not advancing, coarse by default and fine while a handle scrubs.
+     * The progress listener is only re-registered when the interval actually changes.
+     */
+    void updateProgressInterval() {
+
+        long interval = computeProgressInterval();
+
+        if(interval == progressInterval) {
+            return;
+        }
+
+        if(remoteMediaClient != null) {
+
+            if(progressInterval != PROGRESS_INTERVAL_OFF) {
+                remoteMediaClient.removeProgressListener(progressListener);
+            }
+
+            if(interval != PROGRESS_INTERVAL_OFF) {
+                remoteMediaClient.addProgressListener(progressListener, interval);
+            }
+        }
+
+        progressInterval = interval;
+    }
+
+    private long computeProgressInterval() {
+
+        if(remoteMediaClient == null || !(remoteMediaClient.isPlaying() || remoteMediaClient.isBuffering())) {
+            return PROGRESS_INTERVAL_OFF;
+        }
+
+        boolean listening = false;
+
+        for (Casty casty : handles.snapshot()) {
+
+            if(casty.isScrubbing()) {
+                return PROGRESS_INTERVAL_FINE;
+            }
+
+            listening |= casty.hasPlaybackStateListeners();
+        }
+
+        return listening ? PROGRESS_INTERVAL_COARSE : PROGRESS_INTERVAL_OFF;
+    }
+
+    /**
+     * Re-reads the client state into a new published snapshot and re-anchors the clock.
+     *
+     * @return the fields that changed since the previous snapshot
+     */
+    private int updatePlaybackState() {
+
+        long expectedPosition = playbackClock.getPosition();
+        long position = remoteMediaClient.getApproximateStreamPosition();
+        boolean positionJumped = Math.abs(position - expectedPosition) > POSITION_JUMP_THRESHOLD;
+
+        updatePlaybackClock(position, remoteMediaClient.getStreamDuration());
+
+        PlaybackSnapshot snapshot = PlaybackSnapshot.create(remoteMediaClient, playbackSnapshot, positionJumped);
+        playbackSnapshot = snapshot;
+        metrics.onPlayerState(snapshot.getPlayerState());
+        recordResumePosition(snapshot.getStreamPosition(), snapshot.getStreamDuration());
+
+        return snapshot.getChangedFields();
+    }
+
+    private void updatePlaybackClock(long position, long duration) {
+
+        MediaStatus mediaStatus = remoteMediaClient.getMediaStatus();
+        double rate = remoteMediaClient.isPlaying() && mediaStatus != null ? mediaStatus.getPlaybackRate() : 0;
+
+        playbackClock.update(position, duration, rate);
+    }
+
+    private final SessionManagerListener<CastSession> sessionManagerListener =  new SessionManagerListener<CastSession>() {
+        @Override
+        public void onSessionStarted(CastSession castSession, String s) {
+            sessionStarting = false;
+            metrics.onSessionConnected();
+            onConnected(castSession);
+            sessionRecovery.onSessionConnected(false);
+        }
+
+        @Override
+        public void onSessionEnded(CastSession castSession, int i) {
+            sessionStarting = false;
+            onDisconnected(castSession);
+            sessionRecovery.onSessionEnded();
+        }
+
+        @Override
+        public void onSessionResumed(CastSession castSession, boolean b) {
+            sessionStarting = false;
+            metrics.onSessionConnected();
+            onConnected(castSession);
+            sessionRecovery.onSessionConnected(true);
+        }
+
+        @Override
+        public void onSessionStarting(CastSession castSession) {
+            sessionStarting = true;
+            metrics.onSessionStarting();
+            sessionRecovery.onSessionStarting();
+        }
+
+        @Override
+        public void onSessionStartFailed(CastSession castSession, int i) {
+            sessionStarting = false;
+            metrics.onSessionFailed();
+            commandPipeline.onSessionStartFailed();
+            sessionRecovery.onSessionFailed();
+        }
+
+        @Override
+        public void onSessionEnding(CastSession castSession) {
+            //no-op
+        }
+
+        @Override
+        public void onSessionResuming(CastSession castSession, String s) {
+            sessionStarting = true;
+            metrics.onSessionStarting();
+            sessionRecovery.onSessionResuming();
+        }
+
+        @Override
+        public void onSessionResumeFailed(CastSession castSession, int i) {
+            sessionStarting = false;
+            metrics.onSessionFailed();
+            commandPipeline.onSessionStartFailed();
+            sessionRecovery.onSessionFailed();
+        }
+
+        @Override
+        public void onSessionSuspended(CastSession castSession, int i) {
+            sessionRecovery.onSessionSuspended();
+        }
+    };
+
+    private void onConnected(CastSession castSession) {
+        this.castSession = castSession;
+        bindRemoteMediaClient(castSession.getRemoteMediaClient());
+
+        String castDeviceName = Utils.getCastDeviceName(castSession);
+
+        for (Casty casty : handles.snapshot()) {
+            casty.dispatchConnected(castDeviceName);
+        }
+
+        updateDiscovery();
+    }
+
+    private void onDisconnected(CastSession castSession) {
+        this.castSession = null;
+        bindRemoteMediaClient(null);
+
+        String castDeviceName = Utils.getCastDeviceName(castSession);
+
+        for (Casty casty : handles.snapshot()) {
+            casty.dispatchDisconnected(castDeviceName);
+        }
+
+        updateDiscovery();
+    }
+
+    private void bindRemoteMediaClient(RemoteMediaClient newRemoteMediaClient) {
+
+        if(remoteMediaClient == newRemoteMediaClient) {
+            return;
+        }
+
+        if(remoteMediaClient != null) {
+            remoteMediaClient.removeListener(remoteClientListener);
+
+            if(progressInterval != PROGRESS_INTERVAL_OFF) {
+                remoteMediaClient.removeProgressListener(progressListener);
+            }
+        }
+
+        remoteMediaClient = newRemoteMediaClient;
+        progressInterval = PROGRESS_INTERVAL_OFF;
+        playbackSnapshot = PlaybackSnapshot.EMPTY;
+        metrics.onPlayerState(PlaybackSnapshot.EMPTY.getPlayerState());
+        playbackClock.reset();
+
+        if(remoteMediaClient != null) {
+            remoteMediaClient.addListener(remoteClientListener);
+            updatePlaybackState();
+        }
+
+        commandPipeline.bind(remoteMediaClient);
+        queue.bind();
+
+        if(remoteMediaClient != null) {
+            updateProgressInterval();
+        }
+    }
+
+    private void updateCastSession() {
+
+        CastSession currentCastSession = sessionManager.getCurrentCastSession();
+
+        if(currentCastSession != null && currentCastSession.isConnected()) {
+            castSession = currentCastSession;
+            bindRemoteMediaClient(currentCastSession.getRemoteMediaClient());
+        }else {
+            castSession = null;
+            bindRemoteMediaClient(null);
+        }
+    }
+
+    private final RemoteMediaClient.Listener remoteClientListener = new RemoteMediaClient.Listener() {
+        @Override
+        public void onStatusUpdated() {
+
+            queue.onQueueStatusUpdated();
+
+            int changedFields = updatePlaybackState();
+            updateProgressInterval();
+            commandPipeline.onStatusUpdated();
+
+            sessionRecovery.onStatusUpdated(playbackSnapshot);
+
+            if(changedFields == 0) {
+                return;
+            }
+
+            for (Casty casty : handles.snapshot()) {
+                casty.dispatchPlaybackStateChanged();
+            }
+        }
+
+        @Override
+        public void onMetadataUpdated() {
+        }
+
+        @Override
+        public void onQueueStatusUpdated() {
+            queue.onQueueStatusUpdated();
+        }
+
+        @Override
+        public void onPreloadStatusUpdated() {
+            queue.onPreloadStatusUpdated();
+        }
+
+        @Override
+        public void onSendingRemoteMediaRequest() {
+        }
+
+        @Override
+        public void onAdBreakStatusUpdated() {
+        }
+    };
+
+    private final RemoteMediaClient.ProgressListener progressListener = new RemoteMediaClient.ProgressListener() {
+        @Override
+        public void onProgressUpdated(long progress, long duration) {
+
+            updatePlaybackClock(progress, duration);
+            metrics.onPlayerState(playbackSnapshot.getPlayerState());
+            recordResumePosition(progress, duration);
+            sessionRecovery.onProgressUpdated();
+
+            for (Casty casty : handles.snapshot()) {
+                casty.dispatchProgressChanged(progress, duration);
+            }
+        }
+    };
+}
@@ -0,0 +1,151 @@
+package pl.droidsonroids.casty;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides where listener callbacks run. Listeners added with a dispatcher other than
+ * {@link #INLINE} are conflated: while a delivery is pending, newer events replace older ones,
+ * so a slow listener always sees the latest state and progress instead of a backlog.
+ */
+public abstract class CastyDispatcher {
+
+    /**
+     * Delivers callbacks right away on the main thread, inside the Cast SDK callbacks. Events are
+     * not conflated. This is the default.
+     */
+    public static final CastyDispatcher INLINE = new CastyDispatcher() {
+        @Override
+        void dispatch(Runnable delivery) {
+            delivery.run();
+        }
+    };
+
+    /**
+     * Delivers callbacks on the main thread at most once per display frame, aligned with
+     * {@link Choreographer} frames. Below API 16 frames are approximated with a
+     * {@value #FRAME_INTERVAL} ms delay.
+     */
+    public static final CastyDispatcher MAIN_FRAME = new FrameDispatcher();
+
+    static final long FRAME_INTERVAL = 16;
+
+    CastyDispatcher() {
+    }
+
+    /**
+     * Creates a dispatcher delivering callbacks on an executor, e.g. for analytics or database
+     * writes. A listener never receives two callbacks concurrently, even on a thread pool.
+     *
+     * @param executor executor to run callbacks on
+     * @return the dispatcher
+     */
+    public static CastyDispatcher executor(@NonNull final Executor executor) {
+
+        if(executor == null) {
+            throw new NullPointerException("Executor cannot be null");
+        }
+
+        return new CastyDispatcher() {
+            @Override
+            void dispatch(Runnable delivery) {
+                executor.execute(delivery);
+            }
+
+            @Override
+            boolean isThreadSafe() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Schedules a delivery. Called on the main thread unless the dispatcher is thread-safe.
+     *
+     * @param delivery runnable delivering the pending events
+     */
+    abstract void dispatch(Runnable delivery);
+
+    /**
+     * @return true if {@link #dispatch(Runnable)} may be called from any thread, false to have
+     * deliveries scheduled off the main thread handed to it first
+     */
+    boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Runs deliveries scheduled during a frame on the next one. All listeners share one frame
+     * callback.
+     */
+    private static final class FrameDispatcher extends CastyDispatcher {
+
+        private final ArrayList<Runnable> deliveries = new ArrayList<>();
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+        private FrameCallback frameCallback;
+        private boolean scheduled;
+
+        @Override
+        void dispatch(Runnable delivery) {
+
+            deliveries.add(delivery);
+
+            if(scheduled) {
+                return;
+            }
+
+            scheduled = true;
+
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+
+                if(frameCallback == null) {
+                    frameCallback = new FrameCallback(frameRunnable);
+                }
+
+                frameCallback.post();
+            }else {
+                mainHandler.postDelayed(frameRunnable, FRAME_INTERVAL);
+            }
+        }
+
+        private final Runnable frameRunnable = new Runnable() {
+            @Override
+            public void run() {
+
+                Runnable[] frameDeliveries = deliveries.toArray(new Runnable[deliveries.size()]);
+                deliveries.clear();
+                scheduled = false;
+
+                for (Runnable delivery : frameDeliveries) {
+                    delivery.run();
+                }
+            }
+        };
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameCallback implements Choreographer.FrameCallback {
+
+        private final Runnable frameRunnable;
+
+        FrameCallback(Runnable frameRunnable) {
+            this.frameRunnable = frameRunnable;
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameRunnable.run();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package pl.droidsonroids.casty;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * Headless Fragment owning the {@link Casty} handles of its Activity and forwarding the Activity's
+ * resume, pause and destroy to them. Handles live exactly as long as the Activity: a handle the app
+ * does not hold on to keeps working, while nothing outside the Activity references the handles or
+ * the listeners they hold, which commonly capture the Activity. Added by Casty, not meant to be used
+ * directly. Must be used from the main thread.
+ */
+public final class CastyLifecycle extends Fragment {
+
+    private static final String TAG = "pl.droidsonroids.casty.CastyLifecycle";
+    private static final Casty[] NO_HANDLES = new Casty[0];
+
+    /**
+     * Fragments by Activity, including ones whose transaction did not run yet. Values are weak so they
+     * never keep their key reachable.
+     */
+    private static final WeakHashMap<Activity, WeakReference<CastyLifecycle>> lifecycles = new WeakHashMap<>();
+
+    private final ArrayList<Casty> handles = new ArrayList<>(1);
+
+    /**
+     * Used by the framework to recreate the Fragment with its Activity.
+     */
+    public CastyLifecycle() {
+    }
+
+    /**
+     * Registers a handle with the Fragment of its Activity, adding the Fragment on first use.
+     *
+     * @param activity Activity the handle is scoped to
+     * @param casty handle to receive the Activity's lifecycle events
+     */
+    static void register(Activity activity, Casty casty) {
+
+        CastyLifecycle lifecycle = of(activity);
+        lifecycle.handles.add(casty);
+
+        if(lifecycle.isResumed()) {
+            casty.onActivityResumed();
+        }
+    }
+
+    private static CastyLifecycle of(Activity activity) {
+
+        WeakReference<CastyLifecycle> reference = lifecycles.get(activity);
+        CastyLifecycle lifecycle = reference != null ? reference.get() : null;
+
+        if(lifecycle != null) {
+            return lifecycle;
+        }
+
+        FragmentManager fragmentManager = activity.getFragmentManager();
+        lifecycle = (CastyLifecycle) fragmentManager.findFragmentByTag(TAG);
+
+        if(lifecycle == null) {
+            lifecycle = new CastyLifecycle();
+            fragmentManager.beginTransaction().add(lifecycle, TAG).commitAllowingStateLoss();
+        }
+
+        lifecycles.put(activity, new WeakReference<>(lifecycle));
+        return lifecycle;
+    }
+
+    private Casty[] handles() {
+        return handles.isEmpty() ? NO_HANDLES : handles.toArray(new Casty[handles.size()]);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        for (Casty casty : handles()) {
+            casty.onActivityResumed();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        for (Casty casty : handles()) {
+            casty.onActivityPaused();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        Casty[] destroyed = handles();
+        handles.clear();
+
+        for (Casty casty : destroyed) {
+            casty.onActivityDestroyed();
+        }
+    }
+}
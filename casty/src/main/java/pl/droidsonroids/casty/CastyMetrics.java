@@ -0,0 +1,396 @@
+package pl.droidsonroids.casty;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.MediaStatus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cast performance metrics. It is fed by the session engine and records
+ * time-to-connect, time from load to first playback, rebuffering and per-command round-trip
+ * latency. Recording never allocates; {@link #snapshot()} can be called from any thread and
+ * exported to your own telemetry.
+ */
+public final class CastyMetrics {
+
+    /**
+     * Time after a seek is sent during which buffering is attributed to the seek rather than
+     * counted as a rebuffer.
+     */
+    static final long SEEK_WINDOW = 5000;
+
+    private final LatencyHistogram timeToConnect = new LatencyHistogram();
+    private final LatencyHistogram loadToPlaying = new LatencyHistogram();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+    private final LatencyHistogram commandLatency = new LatencyHistogram();
+    private final LatencyHistogram transitionGap = new LatencyHistogram();
+    private final LatencyHistogram timeToRecover = new LatencyHistogram();
+
+    private final AtomicLong rebufferCount = new AtomicLong();
+    private final AtomicLong playingMillis = new AtomicLong();
+    private final AtomicLong bufferingMillis = new AtomicLong();
+    private final AtomicLong commandsSent = new AtomicLong();
+    private final AtomicLong commandsCollapsed = new AtomicLong();
+    private final AtomicLong discoveryScanMillis = new AtomicLong();
+    private final AtomicLong discoveryWakeUps = new AtomicLong();
+    private final AtomicLong discoveryEventsSuppressed = new AtomicLong();
+    private final AtomicLong preloadedTransitions = new AtomicLong();
+    private final AtomicLong recoveryAttempts = new AtomicLong();
+    private final AtomicLong recoveryFailures = new AtomicLong();
+
+    private long sessionStartingAt;
+    private long loadStartedAt;
+    private long seekStartedAt;
+    private int playerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+    private long playerStateSince;
+    private long playingEndedAt;
+    private long transitionStartedAt;
+
+    CastyMetrics() {
+    }
+
+    void onSessionStarting() {
+        sessionStartingAt = SystemClock.elapsedRealtime();
+    }
+
+    void onSessionConnected() {
+
+        if(sessionStartingAt != 0) {
+            timeToConnect.record(SystemClock.elapsedRealtime() - sessionStartingAt);
+            sessionStartingAt = 0;
+        }
+    }
+
+    void onSessionFailed() {
+        sessionStartingAt = 0;
+    }
+
+    void onLoadStarted() {
+        loadStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    void onLoadCompleted(long latencyMillis) {
+        loadLatency.record(latencyMillis);
+    }
+
+    void onSeekStarted() {
+        seekStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Accounts time spent in the previous player state and detects load completion and rebuffers.
+     * Buffering while a load, a queue transition or a seek within {@link #SEEK_WINDOW} is pending
+     * is expected and not a rebuffer. Called on every status update and progress tick.
+     *
+     * @param newPlayerState current player state, one of the {@code MediaStatus.PLAYER_STATE_*} values
+     */
+    void onPlayerState(int newPlayerState) {
+
+        long now = SystemClock.elapsedRealtime();
+
+        if(playerStateSince != 0) {
+
+            if(playerState == MediaStatus.PLAYER_STATE_PLAYING) {
+                playingMillis.addAndGet(now - playerStateSince);
+            }else if(playerState == MediaStatus.PLAYER_STATE_BUFFERING) {
+                bufferingMillis.addAndGet(now - playerStateSince);
+            }
+        }
+
+        if(newPlayerState == MediaStatus.PLAYER_STATE_PLAYING && loadStartedAt != 0) {
+            loadToPlaying.record(now - loadStartedAt);
+            loadStartedAt = 0;
+        }
+
+        if(seekStartedAt != 0 && now - seekStartedAt > SEEK_WINDOW) {
+            seekStartedAt = 0;
+        }
+
+        if(newPlayerState == MediaStatus.PLAYER_STATE_BUFFERING && playerState == MediaStatus.PLAYER_STATE_PLAYING
+                && loadStartedAt == 0 && transitionStartedAt == 0 && seekStartedAt == 0) {
+            rebufferCount.incrementAndGet();
+        }
+
+        if(newPlayerState == MediaStatus.PLAYER_STATE_PLAYING && transitionStartedAt != 0) {
+            transitionGap.record(now - transitionStartedAt);
+            transitionStartedAt = 0;
+        }
+
+        if(playerState == MediaStatus.PLAYER_STATE_PLAYING && newPlayerState != MediaStatus.PLAYER_STATE_PLAYING) {
+            playingEndedAt = now;
+        }
+
+        playerState = newPlayerState;
+        playerStateSince = now;
+    }
+
+    /**
+     * Starts measuring the gap of a queue transition to the next item, which ends when the new
+     * item plays. The gap starts when the previous item stopped playing.
+     *
+     * @param preloaded true if the receiver had preloaded the new item
+     */
+    void onQueueTransition(boolean preloaded) {
+
+        if(preloaded) {
+            preloadedTransitions.incrementAndGet();
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        if(playerState == MediaStatus.PLAYER_STATE_PLAYING || playingEndedAt == 0) {
+            transitionStartedAt = now;
+        }else {
+            transitionStartedAt = playingEndedAt;
+        }
+    }
+
+    void onCommandSent() {
+        commandsSent.incrementAndGet();
+    }
+
+    void onCommandCollapsed() {
+        commandsCollapsed.incrementAndGet();
+    }
+
+    void onCommandCompleted(CastyResult result) {
+        commandLatency.record(result.getLatencyMillis());
+    }
+
+    void onDiscoveryScan(long millis) {
+        discoveryScanMillis.addAndGet(millis);
+    }
+
+    void onDiscoveryWakeUp() {
+        discoveryWakeUps.incrementAndGet();
+    }
+
+    void onDiscoveryEventSuppressed() {
+        discoveryEventsSuppressed.incrementAndGet();
+    }
+
+    void onRecoveryAttempt() {
+        recoveryAttempts.incrementAndGet();
+    }
+
+    void onSessionRecovered(long millis) {
+        timeToRecover.record(millis);
+    }
+
+    void onRecoveryFailed() {
+        recoveryFailures.incrementAndGet();
+    }
+
+    long getCollapsedCommandCount() {
+        return commandsCollapsed.get();
+    }
+
+    /**
+     * Resets all recorded values, e.g. after they were exported.
+     */
+    public void reset() {
+        timeToConnect.reset();
+        loadToPlaying.reset();
+        loadLatency.reset();
+        commandLatency.reset();
+        transitionGap.reset();
+        timeToRecover.reset();
+        rebufferCount.set(0);
+        playingMillis.set(0);
+        bufferingMillis.set(0);
+        commandsSent.set(0);
+        commandsCollapsed.set(0);
+        discoveryScanMillis.set(0);
+        discoveryWakeUps.set(0);
+        discoveryEventsSuppressed.set(0);
+        preloadedTransitions.set(0);
+        recoveryAttempts.set(0);
+        recoveryFailures.set(0);
+    }
+
+    /**
+     * Copies the current metrics.
+     *
+     * @return an immutable snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of {@link CastyMetrics}.
+     */
+    public static final class Snapshot {
+
+        private final LatencyHistogram.Snapshot timeToConnect;
+        private final LatencyHistogram.Snapshot loadToPlaying;
+        private final LatencyHistogram.Snapshot loadLatency;
+        private final LatencyHistogram.Snapshot commandLatency;
+        private final LatencyHistogram.Snapshot transitionGap;
+        private final LatencyHistogram.Snapshot timeToRecover;
+        private final long rebufferCount;
+        private final long playingMillis;
+        private final long bufferingMillis;
+        private final long commandsSent;
+        private final long commandsCollapsed;
+        private final long discoveryScanMillis;
+        private final long discoveryWakeUps;
+        private final long discoveryEventsSuppressed;
+        private final long preloadedTransitions;
+        private final long recoveryAttempts;
+        private final long recoveryFailures;
+
+        private Snapshot(CastyMetrics metrics) {
+            this.timeToConnect = metrics.timeToConnect.snapshot();
+            this.loadToPlaying = metrics.loadToPlaying.snapshot();
+            this.loadLatency = metrics.loadLatency.snapshot();
+            this.commandLatency = metrics.commandLatency.snapshot();
+            this.transitionGap = metrics.transitionGap.snapshot();
+            this.timeToRecover = metrics.timeToRecover.snapshot();
+            this.rebufferCount = metrics.rebufferCount.get();
+            this.playingMillis = metrics.playingMillis.get();
+            this.bufferingMillis = metrics.bufferingMillis.get();
+            this.commandsSent = metrics.commandsSent.get();
+            this.commandsCollapsed = metrics.commandsCollapsed.get();
+            this.discoveryScanMillis = metrics.discoveryScanMillis.get();
+            this.discoveryWakeUps = metrics.discoveryWakeUps.get();
+            this.discoveryEventsSuppressed = metrics.discoveryEventsSuppressed.get();
+            this.preloadedTransitions = metrics.preloadedTransitions.get();
+            this.recoveryAttempts = metrics.recoveryAttempts.get();
+            this.recoveryFailures = metrics.recoveryFailures.get();
+        }
+
+        public LatencyHistogram.Snapshot getTimeToConnect() {
+            return timeToConnect;
+        }
+
+        public LatencyHistogram.Snapshot getLoadToPlaying() {
+            return loadToPlaying;
+        }
+
+        /**
+         * Gets the time from issuing a load to the receiver answering that the new content is loaded.
+         *
+         * @return load latency histogram
+         */
+        public LatencyHistogram.Snapshot getLoadLatency() {
+            return loadLatency;
+        }
+
+        public LatencyHistogram.Snapshot getCommandLatency() {
+            return commandLatency;
+        }
+
+        /**
+         * Gets the time between one queue item stopping and the next one playing, for transitions
+         * the receiver made on its own, i.e. not skips.
+         *
+         * @return transition gap histogram
+         */
+        public LatencyHistogram.Snapshot getTransitionGap() {
+            return transitionGap;
+        }
+
+        /**
+         * Gets how many queue transitions went to an item the receiver had preloaded.
+         *
+         * @return preloaded transition count
+         */
+        public long getPreloadedTransitions() {
+            return preloadedTransitions;
+        }
+
+        /**
+         * Gets the time from a session suspension, or from reconnecting after the process died,
+         * until the receiver plays the recovered content again.
+         *
+         * @return time to recover histogram
+         */
+        public LatencyHistogram.Snapshot getTimeToRecover() {
+            return timeToRecover;
+        }
+
+        /**
+         * Gets how many backoff attempts were made to reconnect a suspended session.
+         *
+         * @return recovery attempt count
+         */
+        public long getRecoveryAttempts() {
+            return recoveryAttempts;
+        }
+
+        /**
+         * Gets how many recoveries were given up, e.g. because the device did not come back.
+         *
+         * @return recovery failure count
+         */
+        public long getRecoveryFailures() {
+            return recoveryFailures;
+        }
+
+        /**
+         * Gets how many times playback stalled to buffer, not counting buffering caused by loads,
+         * queue transitions or seeks.
+         *
+         * @return rebuffer count
+         */
+        public long getRebufferCount() {
+            return rebufferCount;
+        }
+
+        public long getPlayingMillis() {
+            return playingMillis;
+        }
+
+        public long getBufferingMillis() {
+            return bufferingMillis;
+        }
+
+        /**
+         * Gets the share of active playback time spent buffering.
+         *
+         * @return buffering time divided by playing plus buffering time, 0 if nothing played
+         */
+        public double getStallRatio() {
+
+            long total = playingMillis + bufferingMillis;
+            return total == 0 ? 0 : (double) bufferingMillis / total;
+        }
+
+        public long getCommandsSent() {
+            return commandsSent;
+        }
+
+        public long getCommandsCollapsed() {
+            return commandsCollapsed;
+        }
+
+        /**
+         * Gets the total time spent in active MediaRouter scans.
+         *
+         * @return active scan time in milliseconds
+         */
+        public long getDiscoveryScanMillis() {
+            return discoveryScanMillis;
+        }
+
+        /**
+         * Gets how many times discovery was started, either cast state observation or an active scan.
+         *
+         * @return discovery wake-up count
+         */
+        public long getDiscoveryWakeUps() {
+            return discoveryWakeUps;
+        }
+
+        /**
+         * Gets how many cast state changes were not dispatched because availability did not change.
+         *
+         * @return suppressed discovery event count
+         */
+        public long getDiscoveryEventsSuppressed() {
+            return discoveryEventsSuppressed;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package pl.droidsonroids.casty;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Publishes a stream of values of a {@link Casty} instance, such as playback state or progress,
+ * with demand-based backpressure. Each subscriber gets the current value first, then changes.
+ * Values are conflated: a subscriber without demand, or whose delivery is still pending, only
+ * keeps the latest value, so nothing is buffered. Subscriptions complete when the Casty instance
+ * is released, e.g. when its Activity is destroyed. Values are published on the main thread;
+ * subscribing, requesting and canceling are safe from any thread. Deliveries they trigger off the
+ * main thread are handed to it first, so inline and frame-aligned subscribers are only called on
+ * the main thread.
+ *
+ * @param <T> value type
+ */
+public final class CastyPublisher<T> {
+
+    private final ListenerRegistry<Subscription<T>> subscriptions;
+    private final Runnable onSubscribersChanged;
+    private volatile T current;
+
+    @SuppressWarnings("unchecked")
+    CastyPublisher(Runnable onSubscribersChanged) {
+        this.subscriptions = new ListenerRegistry<>((Subscription<T>[]) new Subscription[0]);
+        this.onSubscribersChanged = onSubscribersChanged;
+    }
+
+    /**
+     * Subscribes with values delivered inline on the main thread.
+     *
+     * @param subscriber subscriber to receive values
+     * @return the subscription, also passed to {@link CastySubscriber#onSubscribe(CastySubscription)}
+     */
+    public CastySubscription subscribe(@NonNull CastySubscriber<? super T> subscriber) {
+        return subscribe(subscriber, CastyDispatcher.INLINE);
+    }
+
+    /**
+     * Subscribes with values delivered by a {@link CastyDispatcher}.
+     *
+     * @param subscriber subscriber to receive values
+     * @param dispatcher where and how often values are delivered
+     * @return the subscription, also passed to {@link CastySubscriber#onSubscribe(CastySubscription)}
+     */
+    public CastySubscription subscribe(@NonNull CastySubscriber<? super T> subscriber, @NonNull CastyDispatcher dispatcher) {
+
+        if(subscriber == null) {
+            throw new NullPointerException("CastySubscriber cannot be null");
+        }
+
+        if(dispatcher == null) {
+            throw new NullPointerException("CastyDispatcher cannot be null");
+        }
+
+        Subscription<T> subscription = new Subscription<>(this, subscriber, dispatcher);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+
+        T value = current;
+
+        if(value != null) {
+            subscription.offer(value);
+        }
+
+        if(onSubscribersChanged != null) {
+            onSubscribersChanged.run();
+        }
+
+        return subscription;
+    }
+
+    boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publishes a value unless it equals the current one.
+     *
+     * @param value the new value
+     */
+    void publish(T value) {
+
+        if(value.equals(current)) {
+            return;
+        }
+
+        current = value;
+
+        for (Subscription<T> subscription : subscriptions.snapshot()) {
+            subscription.offer(value);
+        }
+    }
+
+    /**
+     * Completes all subscriptions and forgets the current value.
+     */
+    void complete() {
+
+        Subscription<T>[] completed = subscriptions.snapshot();
+
+        subscriptions.clear();
+        current = null;
+
+        for (Subscription<T> subscription : completed) {
+            subscription.complete();
+        }
+
+        if(completed.length > 0 && onSubscribersChanged != null) {
+            onSubscribersChanged.run();
+        }
+    }
+
+    private void remove(Subscription<T> subscription) {
+
+        if(subscriptions.remove(subscription) && onSubscribersChanged != null) {
+            onSubscribersChanged.run();
+        }
+    }
+
+    /**
+     * Delivers the latest value while there is demand, see {@link ConflatedListener}.
+     */
+    private static final class Subscription<T> extends ConflatedListener<CastySubscriber<? super T>>
+            implements CastySubscription {
+
+        private final CastyPublisher<T> publisher;
+
+        private T pendingValue;
+        private long demand;
+        private boolean completePending;
+
+        private T value;
+        private boolean complete;
+
+        Subscription(CastyPublisher<T> publisher, CastySubscriber<? super T> subscriber, CastyDispatcher dispatcher) {
+            super(subscriber, dispatcher);
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void request(long count) {
+
+            if(count <= 0) {
+                throw new IllegalArgumentException("Requested count must be positive");
+            }
+
+            synchronized (this) {
+                demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            publisher.remove(this);
+        }
+
+        void offer(T value) {
+
+            synchronized (this) {
+                pendingValue = value;
+            }
+
+            schedule();
+        }
+
+        void complete() {
+
+            synchronized (this) {
+                completePending = true;
+                pendingValue = null;
+            }
+
+            schedule();
+        }
+
+        @Override
+        boolean takePending() {
+
+            if(completePending) {
+                completePending = false;
+                complete = true;
+                return true;
+            }
+
+            if(pendingValue == null || demand == 0) {
+                return false;
+            }
+
+            value = pendingValue;
+            pendingValue = null;
+
+            if(demand != Long.MAX_VALUE) {
+                demand--;
+            }
+
+            return true;
+        }
+
+        @Override
+        void deliver() {
+
+            if(complete) {
+                super.cancel();
+                listener.onComplete();
+            }else {
+                listener.onNext(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package pl.droidsonroids.casty;
+
+import android.util.SparseIntArray;
+
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Playlist of any length of which only a window around the current entry is materialized on the
+ * receiver: up to {@link #WINDOW_BEHIND} entries before it and {@link #WINDOW_AHEAD} after it.
+ * The window is extended and trimmed in batches as queue status updates report progress, so
+ * receiver memory and message sizes stay bounded. Receiver items are tagged with the queue and
+ * entry they come from, which keeps the mapping valid even while window requests are in flight.
+ * <p>
+ * With a preload time set, the receiver loads the next item that many seconds before the current
+ * one ends, so transitions between items are near gapless. Transitions the receiver makes on its own
+ * are reported to {@link CastyMetrics}. Must be used from the main thread.
+ */
+final class CastyQueue {
+
+    static final int WINDOW_AHEAD = 10;
+    static final int WINDOW_BEHIND = 3;
+
+    private static final String KEY_QUEUE_ID = "castyQueueId";
+    private static final String KEY_ENTRY = "castyEntry";
+
+    private static int nextQueueId = 1;
+
+    private final CastyCore core;
+    private final CommandPipeline commandPipeline;
+    private final CastyMetrics metrics;
+
+    private double preloadTime;
+    private int queueId;
+    private MediaData[] entries = new MediaData[0];
+    private int[] entryKeys = new int[0];
+    private int nextEntryKey;
+    private int currentIndex = -1;
+    private int currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+    private int preloadedItemId = MediaQueueItem.INVALID_ITEM_ID;
+    private CastyResult windowRequest;
+    private CastyResult pendingUpdate;
+
+    CastyQueue(CastyCore core, CommandPipeline commandPipeline, CastyMetrics metrics) {
+        this.core = core;
+        this.commandPipeline = commandPipeline;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets how long before the end of an item the receiver preloads the next one. Applies to
+     * items sent to the receiver from now on.
+     *
+     * @param preloadTime preload time in seconds, 0 to disable preloading
+     */
+    void setPreloadTime(double preloadTime) {
+        this.preloadTime = preloadTime;
+    }
+
+    /**
+     * Gets the entry the receiver has preloaded, as of the last preload status update.
+     *
+     * @return index of the preloaded entry or -1 if none
+     */
+    int getPreloadedIndex() {
+
+        RemoteMediaClient remoteMediaClient = core.getRemoteMediaClient();
+        MediaStatus mediaStatus = remoteMediaClient != null ? remoteMediaClient.getMediaStatus() : null;
+
+        if(preloadedItemId == MediaQueueItem.INVALID_ITEM_ID || mediaStatus == null) {
+            return -1;
+        }
+
+        MediaQueueItem item = mediaStatus.getQueueItemById(preloadedItemId);
+        return item != null ? indexOf(item, currentIndex + 1) : -1;
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * Gets the index of the entry playing on the receiver, as of the last queue status update.
+     *
+     * @return current index or -1 if no queue is loaded
+     */
+    int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    /**
+     * Gets the playlist. The array is replaced, never modified, when the playlist changes.
+     *
+     * @return entries, must not be modified
+     */
+    MediaData[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * Replaces the playlist and loads the window around the start entry.
+     *
+     * @param playlist entries to play, copied
+     * @param startIndex index of the entry to start with
+     * @param startPosition position to start the entry at in milliseconds
+     * @return result of the queue load request
+     */
+    CastyResult load(List<MediaData> playlist, int startIndex, long startPosition) {
+
+        dropPendingUpdate(CastyResult.STATUS_COLLAPSED);
+        queueId = nextQueueId++;
+        entries = playlist.toArray(new MediaData[playlist.size()]);
+        entryKeys = new int[entries.length];
+
+        for (int i = 0; i < entryKeys.length; i++) {
+            entryKeys[i] = i;
+        }
+
+        nextEntryKey = entryKeys.length;
+        currentIndex = startIndex;
+        return loadWindow(startIndex, startPosition);
+    }
+
+    /**
+     * Replaces the playlist while it plays. Entries are matched to the current ones with
+     * {@link MediaData#equals(Object)}; the current entry keeps playing untouched and is kept in
+     * the playlist even if the new one does not contain it. Only the window on the receiver is
+     * edited, with the minimal operations computed by {@link QueueDiff}. While a window request is
+     * in flight the edit waits for it, so it is computed against the receiver's updated window;
+     * a newer update supersedes a waiting one.
+     *
+     * @param playlist new entries, copied
+     * @return result of the queue edit, successful right away if the window is unchanged
+     */
+    CastyResult update(List<MediaData> playlist) {
+
+        if(queueId == 0) {
+            return CastyResult.failed();
+        }
+
+        int currentKey = entryKeys[currentIndex];
+        int[] matchedKeys = QueueDiff.matchKeys(entries, entryKeys, playlist, nextEntryKey);
+        SparseIntArray oldPositions = new SparseIntArray(entryKeys.length);
+
+        for (int i = 0; i < entryKeys.length; i++) {
+            oldPositions.put(entryKeys[i], i);
+        }
+
+        int currentPosition = -1;
+        int lastRetainedBeforeCurrent = -1;
+        ArrayList<MediaData> newEntries = new ArrayList<>(playlist);
+        int[] newKeys = Arrays.copyOf(matchedKeys, matchedKeys.length + 1);
+
+        for (int i = 0; i < matchedKeys.length; i++) {
+
+            int oldPosition = oldPositions.get(matchedKeys[i], -1);
+            nextEntryKey = Math.max(nextEntryKey, matchedKeys[i] + 1);
+
+            if(matchedKeys[i] == currentKey) {
+                currentPosition = i;
+            }else if(currentPosition < 0 && oldPosition >= 0 && oldPosition < currentIndex) {
+                lastRetainedBeforeCurrent = i;
+            }
+        }
+
+        if(currentPosition < 0) {
+            currentPosition = lastRetainedBeforeCurrent + 1;
+            System.arraycopy(newKeys, currentPosition, newKeys, currentPosition + 1, newEntries.size() - currentPosition);
+            newKeys[currentPosition] = currentKey;
+            newEntries.add(currentPosition, entries[currentIndex]);
+        }
+
+        entries = newEntries.toArray(new MediaData[newEntries.size()]);
+        entryKeys = Arrays.copyOf(newKeys, entries.length);
+        currentIndex = currentPosition;
+
+        if(windowRequest != null && !windowRequest.isDone()) {
+            return deferUpdate();
+        }
+
+        return updateWindow(entryKeys[currentIndex]);
+    }
+
+    /**
+     * Edits the window once the window request in flight is done. The playlist is already updated,
+     * so the edit is computed from whatever it is at that time.
+     */
+    private CastyResult deferUpdate() {
+
+        dropPendingUpdate(CastyResult.STATUS_COLLAPSED);
+
+        final CastyResult result = new CastyResult();
+        pendingUpdate = result;
+
+        windowRequest.addOnDone(new Runnable() {
+            @Override
+            public void run() {
+
+                if(pendingUpdate != result) {
+                    return;
+                }
+
+                pendingUpdate = null;
+
+                final CastyResult windowResult = updateWindow(entryKeys[currentIndex]);
+
+                windowResult.addOnDone(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.complete(windowResult.getStatus());
+                    }
+                });
+            }
+        });
+
+        return result;
+    }
+
+    private void dropPendingUpdate(int status) {
+
+        if(pendingUpdate != null) {
+
+            if(pendingUpdate.complete(status) && status == CastyResult.STATUS_COLLAPSED) {
+                metrics.onCommandCollapsed();
+            }
+
+            pendingUpdate = null;
+        }
+    }
+
+    /**
+     * Forgets the playlist, e.g. because a single item was loaded in its place.
+     */
+    void clear() {
+        dropPendingUpdate(CastyResult.STATUS_COLLAPSED);
+        queueId = 0;
+        entries = new MediaData[0];
+        entryKeys = new int[0];
+        currentIndex = -1;
+        currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+        preloadedItemId = MediaQueueItem.INVALID_ITEM_ID;
+        windowRequest = null;
+    }
+
+    /**
+     * Plays an entry, jumping within the window if it is materialized and reloading the window
+     * around it otherwise.
+     *
+     * @param index index of the entry to play
+     * @return result of the request
+     */
+    CastyResult jumpTo(int index) {
+
+        RemoteMediaClient remoteMediaClient = core.getRemoteMediaClient();
+
+        if(queueId == 0 || index < 0 || index >= entries.length || remoteMediaClient == null) {
+            return CastyResult.failed();
+        }
+
+        MediaStatus mediaStatus = remoteMediaClient.getMediaStatus();
+        List<MediaQueueItem> items = mediaStatus != null ? mediaStatus.getQueueItems() : null;
+
+        if(items != null) {
+
+            for (MediaQueueItem item : items) {
+
+                if(indexOf(item, index) == index) {
+                    currentIndex = index;
+                    currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+                    return commandPipeline.sendQueueRequest(
+                            remoteMediaClient.queueJumpToItem(item.getItemId(), core.getStartPosition(entries[index]), null), false);
+                }
+            }
+        }
+
+        currentIndex = index;
+        return loadWindow(index, core.getStartPosition(entries[index]));
+    }
+
+    /**
+     * Rebinds to a new client. Window requests of the previous session are forgotten.
+     */
+    void bind() {
+        dropPendingUpdate(CastyResult.STATUS_FAILED);
+        windowRequest = null;
+        currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+        preloadedItemId = MediaQueueItem.INVALID_ITEM_ID;
+    }
+
+    /**
+     * Records which item the receiver preloaded.
+     */
+    void onPreloadStatusUpdated() {
+
+        RemoteMediaClient remoteMediaClient = core.getRemoteMediaClient();
+        MediaStatus mediaStatus = remoteMediaClient != null ? remoteMediaClient.getMediaStatus() : null;
+
+        if(queueId != 0 && mediaStatus != null) {
+            preloadedItemId = mediaStatus.getPreloadedItemId();
+        }
+    }
+
+    /**
+     * Follows the receiver to the current entry, then extends the window once fewer than half of
+     * {@link #WINDOW_AHEAD} entries are left ahead, or trims it once twice {@link #WINDOW_BEHIND}
+     * entries are behind. At most one window request is in flight.
+     */
+    void onQueueStatusUpdated() {
+
+        RemoteMediaClient remoteMediaClient = core.getRemoteMediaClient();
+
+        if(queueId == 0 || remoteMediaClient == null) {
+            return;
+        }
+
+        MediaStatus mediaStatus = remoteMediaClient.getMediaStatus();
+
+        if(mediaStatus == null) {
+            return;
+        }
+
+        List<MediaQueueItem> items = mediaStatus.getQueueItems();
+        Integer currentPosition = mediaStatus.getIndexById(mediaStatus.getCurrentItemId());
+
+        if(items == null || items.isEmpty() || currentPosition == null) {
+            return;
+        }
+
+        int index = indexOf(items.get(currentPosition), currentIndex);
+
+        if(index < 0) {
+            return;
+        }
+
+        int itemId = mediaStatus.getCurrentItemId();
+
+        if(itemId != currentItemId) {
+
+            if(currentItemId != MediaQueueItem.INVALID_ITEM_ID && index == currentIndex + 1) {
+                metrics.onQueueTransition(itemId == preloadedItemId);
+            }
+
+            currentItemId = itemId;
+            preloadedItemId = MediaQueueItem.INVALID_ITEM_ID;
+        }
+
+        currentIndex = index;
+
+        if(windowRequest != null && !windowRequest.isDone()) {
+            return;
+        }
+
+        int lastIndex = indexOf(items.get(items.size() - 1), index + items.size() - currentPosition - 1);
+
+        if(lastIndex >= 0 && lastIndex - index < WINDOW_AHEAD / 2 && lastIndex < entries.length - 1) {
+
+            int to = Math.min(entries.length, index + WINDOW_AHEAD + 1);
+
+            windowRequest = commandPipeline.sendQueueRequest(
+                    remoteMediaClient.queueInsertItems(createItems(lastIndex + 1, to), MediaQueueItem.INVALID_ITEM_ID, null), false);
+        }else if(currentPosition >= WINDOW_BEHIND * 2) {
+
+            int[] itemIds = new int[currentPosition - WINDOW_BEHIND];
+
+            for (int i = 0; i < itemIds.length; i++) {
+                itemIds[i] = items.get(i).getItemId();
+            }
+
+            windowRequest = commandPipeline.sendQueueRequest(remoteMediaClient.queueRemoveItems(itemIds, null), false);
+        }
+    }
+
+    /**
+     * Edits the receiver window to match the playlist around the current entry. Removals go in one
+     * request, moves and insertions in one request per contiguous run. The requests are sent one
+     * after another, each once the previous one succeeded, so the edit applies in order and holds a
+     * single in-flight slot of the pipeline.
+     */
+    private CastyResult updateWindow(int currentKey) {
+
+        RemoteMediaClient remoteMediaClient = core.getRemoteMediaClient();
+        MediaStatus mediaStatus = remoteMediaClient != null ? remoteMediaClient.getMediaStatus() : null;
+        List<MediaQueueItem> items = mediaStatus != null ? mediaStatus.getQueueItems() : null;
+
+        if(items == null) {
+            return CastyResult.failed();
+        }
+
+        int[] itemKeys = new int[items.size()];
+        SparseIntArray itemIds = new SparseIntArray(items.size());
+
+        for (int i = 0; i < itemKeys.length; i++) {
+            itemKeys[i] = keyOf(items.get(i));
+
+            if(itemKeys[i] < 0) {
+                return loadWindow(currentIndex, core.getStartPosition(entries[currentIndex]));
+            }
+
+            itemIds.put(itemKeys[i], items.get(i).getItemId());
+        }
+
+        int from = Math.max(0, currentIndex - WINDOW_BEHIND);
+        int to = Math.min(entries.length, currentIndex + WINDOW_AHEAD + 1);
+        int[] windowKeys = Arrays.copyOfRange(entryKeys, from, to);
+        List<QueueDiff.Operation> operations = QueueDiff.compute(itemKeys, windowKeys, currentKey);
+
+        MediaQueueItem[][] insertedItems = new MediaQueueItem[operations.size()][];
+
+        for (int i = 0; i < insertedItems.length; i++) {
+
+            QueueDiff.Operation operation = operations.get(i);
+
+            if(operation.type == QueueDiff.OPERATION_INSERT) {
+                int position = from + operation.position;
+                insertedItems[i] = createItems(position, position + operation.keys.length);
+            }
+        }
+
+        CastyResult result = new CastyResult();
+        windowRequest = result;
+        new WindowEdit(remoteMediaClient, operations, insertedItems, itemIds, result).run();
+        return result;
+    }
+
+    private static int[] toItemIds(int[] keys, SparseIntArray itemIds) {
+
+        int[] ids = new int[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            ids[i] = itemIds.get(keys[i]);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Sends the requests of a window edit one after another. Completes the result once all of them
+     * succeeded, or with the first failure. The edit stops early if its result is completed by
+     * someone else or the session changes, as the remaining requests target a stale window.
+     */
+    private final class WindowEdit implements Runnable {
+
+        private final RemoteMediaClient remoteMediaClient;
+        private final List<QueueDiff.Operation> operations;
+        private final MediaQueueItem[][] insertedItems;
+        private final SparseIntArray itemIds;
+        private final CastyResult result;
+        private CastyResult operationResult;
+        private int next;
+
+        WindowEdit(RemoteMediaClient remoteMediaClient, List<QueueDiff.Operation> operations,
+                MediaQueueItem[][] insertedItems, SparseIntArray itemIds, CastyResult result) {
+            this.remoteMediaClient = remoteMediaClient;
+            this.operations = operations;
+            this.insertedItems = insertedItems;
+            this.itemIds = itemIds;
+            this.result = result;
+        }
+
+        /**
+         * Sends the next request once the previous one is done.
+         */
+        @Override
+        public void run() {
+
+            if(operationResult != null && !operationResult.isSuccess()) {
+                result.complete(operationResult.getStatus());
+                return;
+            }
+
+            if(result.isDone()) {
+                return;
+            }
+
+            if(next == operations.size()) {
+                result.complete(CastyResult.STATUS_SUCCESS);
+                return;
+            }
+
+            if(core.getRemoteMediaClient() != remoteMediaClient) {
+                result.complete(CastyResult.STATUS_FAILED);
+                return;
+            }
+
+            operationResult = send(next);
+            next++;
+            operationResult.addOnDone(this);
+        }
+
+        private CastyResult send(int index) {
+
+            QueueDiff.Operation operation = operations.get(index);
+            int beforeItemId = operation.beforeKey == QueueDiff.NO_KEY
+                    ? MediaQueueItem.INVALID_ITEM_ID : itemIds.get(operation.beforeKey);
+
+            if(operation.type == QueueDiff.OPERATION_REMOVE) {
+                return commandPipeline.sendQueueRequest(
+                        remoteMediaClient.queueRemoveItems(toItemIds(operation.keys, itemIds), null), false);
+            }else if(operation.type == QueueDiff.OPERATION_MOVE) {
+                return commandPipeline.sendQueueRequest(
+                        remoteMediaClient.queueReorderItems(toItemIds(operation.keys, itemIds), beforeItemId, null), false);
+            }
+
+            return commandPipeline.sendQueueRequest(
+                    remoteMediaClient.queueInsertItems(insertedItems[index], beforeItemId, null), false);
+        }
+    }
+
+    private CastyResult loadWindow(int index, long startPosition) {
+
+        RemoteMediaClient remoteMediaClient = core.getRemoteMediaClient();
+
+        if(remoteMediaClient == null) {
+            return CastyResult.failed();
+        }
+
+        int from = Math.max(0, index - WINDOW_BEHIND);
+        int to = Math.min(entries.length, index + WINDOW_AHEAD + 1);
+
+        currentItemId = MediaQueueItem.INVALID_ITEM_ID;
+        windowRequest = commandPipeline.sendQueueRequest(remoteMediaClient.queueLoad(createItems(from, to), index - from,
+                MediaStatus.REPEAT_MODE_REPEAT_OFF, startPosition, null), true);
+        return windowRequest;
+    }
+
+    private MediaQueueItem[] createItems(int from, int to) {
+
+        MediaQueueItem[] items = new MediaQueueItem[to - from];
+
+        for (int i = from; i < to; i++) {
+            items[i - from] = new MediaQueueItem.Builder(entries[i].getMediaInfo())
+                    .setAutoplay(true)
+                    .setPreloadTime(preloadTime)
+                    .setCustomData(createTag(entryKeys[i]))
+                    .build();
+        }
+
+        return items;
+    }
+
+    private JSONObject createTag(int entryKey) {
+
+        try {
+            return new JSONObject()
+                    .put(KEY_QUEUE_ID, queueId)
+                    .put(KEY_ENTRY, entryKey);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the entry key a receiver item was tagged with.
+     *
+     * @param item receiver item
+     * @return the entry key or -1 if the item does not belong to this queue
+     */
+    private int keyOf(MediaQueueItem item) {
+
+        JSONObject tag = item.getCustomData();
+
+        if(tag == null || tag.optInt(KEY_QUEUE_ID, 0) != queueId) {
+            return -1;
+        }
+
+        return tag.optInt(KEY_ENTRY, -1);
+    }
+
+    /**
+     * Finds the playlist entry a receiver item was created from, searching outwards from a hint.
+     *
+     * @param item receiver item
+     * @param hint index the entry is expected at
+     * @return index of the entry or -1 if the item does not belong to this queue
+     */
+    private int indexOf(MediaQueueItem item, int hint) {
+
+        int entryKey = keyOf(item);
+        return entryKey >= 0 ? keyPosition(entryKey, hint) : -1;
+    }
+
+    private int keyPosition(int entryKey, int hint) {
+
+        int start = Math.max(0, Math.min(entryKeys.length - 1, hint));
+
+        for (int distance = 0; start - distance >= 0 || start + distance < entryKeys.length; distance++) {
+
+            if(start + distance < entryKeys.length && entryKeys[start + distance] == entryKey) {
+                return start + distance;
+            }
+
+            if(start - distance >= 0 && entryKeys[start - distance] == entryKey) {
+                return start - distance;
+            }
+        }
+
+        return -1;
+    }
+}
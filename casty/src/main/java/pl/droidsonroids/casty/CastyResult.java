@@ -0,0 +1,261 @@
+package pl.droidsonroids.casty;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+
+/**
+ * Handle to a command sent through Casty. It completes exactly once, on the main thread, when the
+ * receiver answers, the command times out, is canceled or is superseded by a newer command.
+ * The round-trip latency and the timeout are measured from the moment the request is sent to the
+ * receiver; until then, commands buffered by Casty are bounded by its own expiry.
+ */
+public final class CastyResult {
+
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_SUCCESS = 1;
+    public static final int STATUS_FAILED = 2;
+    public static final int STATUS_TIMEOUT = 3;
+    public static final int STATUS_CANCELED = 4;
+    public static final int STATUS_COLLAPSED = 5;
+
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    /**
+     * Completion callback, always called on the main thread.
+     */
+    public interface Callback {
+        void onResult(CastyResult result);
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final long createdAt = SystemClock.elapsedRealtime();
+    private volatile int status = STATUS_PENDING;
+    private volatile long sentAt;
+    private volatile long completedAt;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT;
+    private Callback callback;
+    private Runnable onDone;
+    private PendingResult<RemoteMediaClient.MediaChannelResult> pendingResult;
+
+    CastyResult() {
+    }
+
+    /**
+     * Creates a result that has already failed, e.g. because no session is connected.
+     *
+     * @return a completed result with {@link #STATUS_FAILED}
+     */
+    static CastyResult failed() {
+
+        CastyResult result = new CastyResult();
+        result.complete(STATUS_FAILED);
+        return result;
+    }
+
+    /**
+     * Sets the callback invoked on completion. If the result is already complete, the callback
+     * is posted right away.
+     *
+     * @param callback completion callback, null to remove it
+     * @return this instance for chain calls
+     */
+    public CastyResult setCallback(@Nullable final Callback callback) {
+
+        this.callback = callback;
+
+        if(callback != null && isDone()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(CastyResult.this);
+                }
+            });
+        }
+
+        return this;
+    }
+
+    /**
+     * Sets the timeout, counted from the moment the command is sent to the receiver.
+     * Defaults to {@link #DEFAULT_TIMEOUT}.
+     *
+     * @param timeoutMillis timeout in milliseconds, 0 or less disables it
+     * @return this instance for chain calls
+     */
+    public CastyResult setTimeout(long timeoutMillis) {
+
+        if(isDone()) {
+            return this;
+        }
+
+        this.timeoutMillis = timeoutMillis;
+
+        if(sentAt != 0) {
+            scheduleTimeout();
+        }
+
+        return this;
+    }
+
+    /**
+     * Cancels the command. Commands not yet sent are dropped, commands in flight stop being tracked.
+     * Must be called from the main thread.
+     */
+    public void cancel() {
+        complete(STATUS_CANCELED);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isDone() {
+        return status != STATUS_PENDING;
+    }
+
+    public boolean isSuccess() {
+        return status == STATUS_SUCCESS;
+    }
+
+    /**
+     * Gets the round-trip latency of the command.
+     *
+     * @return milliseconds between sending and completion, or -1 if the command was never sent
+     * or is still pending
+     */
+    public long getLatencyMillis() {
+
+        if(sentAt == 0 || completedAt == 0) {
+            return -1;
+        }
+
+        return completedAt - sentAt;
+    }
+
+    /**
+     * @return milliseconds since the command was issued
+     */
+    long getAge() {
+        return SystemClock.elapsedRealtime() - createdAt;
+    }
+
+    /**
+     * Binds the result to a request sent to the receiver.
+     *
+     * @param pendingResult request returned by {@link RemoteMediaClient}, may be null
+     */
+    void attach(@Nullable PendingResult<RemoteMediaClient.MediaChannelResult> pendingResult) {
+
+        if(isDone()) {
+
+            if(pendingResult != null) {
+                pendingResult.cancel();
+            }
+
+            return;
+        }
+
+        this.sentAt = SystemClock.elapsedRealtime();
+        this.pendingResult = pendingResult;
+
+        if(pendingResult == null) {
+            complete(STATUS_SUCCESS);
+            return;
+        }
+
+        scheduleTimeout();
+        pendingResult.setResultCallback(new ResultCallback<RemoteMediaClient.MediaChannelResult>() {
+            @Override
+            public void onResult(@NonNull RemoteMediaClient.MediaChannelResult mediaChannelResult) {
+                complete(mediaChannelResult.getStatus().isSuccess() ? STATUS_SUCCESS : STATUS_FAILED);
+            }
+        });
+    }
+
+    /**
+     * Adds a hook run once on completion, before the callback. Hooks run in the order they were
+     * added; a hook added after completion runs right away.
+     *
+     * @param hook hook to run
+     */
+    void addOnDone(final Runnable hook) {
+
+        if(isDone()) {
+            hook.run();
+            return;
+        }
+
+        final Runnable previous = onDone;
+
+        if(previous == null) {
+            onDone = hook;
+        }else {
+            onDone = new Runnable() {
+                @Override
+                public void run() {
+                    previous.run();
+                    hook.run();
+                }
+            };
+        }
+    }
+
+    /**
+     * Completes the result unless it is already complete.
+     *
+     * @param status final status
+     * @return true if this call completed the result
+     */
+    boolean complete(int status) {
+
+        if(isDone()) {
+            return false;
+        }
+
+        this.completedAt = SystemClock.elapsedRealtime();
+        this.status = status;
+        mainHandler.removeCallbacks(timeoutRunnable);
+
+        if(status != STATUS_SUCCESS && status != STATUS_FAILED && pendingResult != null) {
+            pendingResult.cancel();
+        }
+
+        pendingResult = null;
+
+        if(onDone != null) {
+            onDone.run();
+            onDone = null;
+        }
+
+        if(callback != null) {
+            callback.onResult(this);
+        }
+
+        return true;
+    }
+
+    private void scheduleTimeout() {
+
+        mainHandler.removeCallbacks(timeoutRunnable);
+
+        if(timeoutMillis > 0) {
+            long remaining = sentAt + timeoutMillis - SystemClock.elapsedRealtime();
+            mainHandler.postDelayed(timeoutRunnable, Math.max(0, remaining));
+        }
+    }
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            complete(STATUS_TIMEOUT);
+        }
+    };
+}
@@ -0,0 +1,30 @@
+package pl.droidsonroids.casty;
+
+/**
+ * Receives values from a {@link CastyPublisher}. Mirrors the Reactive Streams {@code Subscriber},
+ * so adapting it to a reactive library is straightforward.
+ *
+ * @param <T> value type
+ */
+public interface CastySubscriber<T> {
+
+    /**
+     * Called once, before any other callback. Request values with {@link CastySubscription#request(long)}.
+     *
+     * @param subscription the subscription
+     */
+    void onSubscribe(CastySubscription subscription);
+
+    /**
+     * Called with the latest value, at most as many times as requested.
+     *
+     * @param value the value
+     */
+    void onNext(T value);
+
+    /**
+     * Called when the Casty instance is released, e.g. because its Activity was destroyed.
+     * No callbacks follow.
+     */
+    void onComplete();
+}
@@ -0,0 +1,19 @@
+package pl.droidsonroids.casty;
+
+/**
+ * Demand and cancellation of a {@link CastySubscriber}. Safe to use from any thread.
+ */
+public interface CastySubscription {
+
+    /**
+     * Requests more values. Until there is demand, only the latest value is kept.
+     *
+     * @param count number of values, {@link Long#MAX_VALUE} for unbounded demand
+     */
+    void request(long count);
+
+    /**
+     * Stops delivery. Pending values are dropped.
+     */
+    void cancel();
+}
@@ -0,0 +1,464 @@
+package pl.droidsonroids.casty;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+
+/**
+ * Coalesces playback commands before they reach the receiver. Seeks issued within
+ * {@link #COALESCE_WINDOW} collapse into the last one and only one seek is in flight at a time.
+ * Play/pause intents collapse the same way and only one is in flight at a time. An intent is
+ * resolved against the last play state sent and not yet confirmed by a status update, and is only
+ * dropped when nothing is unconfirmed and the receiver already reports the requested state.
+ * At most {@link #MAX_IN_FLIGHT} requests are outstanding per session.
+ * Every command returns a {@link CastyResult}; superseded commands complete with
+ * {@link CastyResult#STATUS_COLLAPSED}.
+ * <p>
+ * While a session is starting or resuming, commands are buffered in the same bounded slots (one load,
+ * one seek, one play/pause intent) and replayed once the session connects. Commands older than
+ * {@link #PENDING_EXPIRY} at that point are dropped with {@link CastyResult#STATUS_TIMEOUT}. The
+ * timeout of a {@link CastyResult} only starts once its command is sent, so it never expires
+ * buffered commands before that.
+ * <p>
+ * Seeks and play/pause intents never overtake a load: while a load is in flight they wait for its
+ * answer, and a seek buffered together with a load becomes the load's start position.
+ * Must be used from the main thread.
+ */
+final class CommandPipeline {
+
+    static final long COALESCE_WINDOW = 100;
+    static final int MAX_IN_FLIGHT = 3;
+    static final long PENDING_EXPIRY = 15000;
+
+    private static final int PLAY_STATE_NONE = 0;
+    private static final int PLAY_STATE_PLAY = 1;
+    private static final int PLAY_STATE_PAUSE = 2;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final CastyCore core;
+    private final CastyMetrics metrics;
+    private RemoteMediaClient remoteMediaClient;
+    private int generation;
+
+    private MediaData pendingLoad;
+    private CastyResult pendingLoadResult;
+    private CastyResult pendingSeekResult;
+    private long pendingSeekPosition;
+    private int pendingPlayState = PLAY_STATE_NONE;
+    private CastyResult pendingPlayStateResult;
+    private boolean flushScheduled;
+    private boolean seekInFlight;
+    private boolean loadInFlight;
+    private boolean playStateInFlight;
+    private int sentPlayState = PLAY_STATE_NONE;
+    private int inFlight;
+
+    CommandPipeline(CastyCore core, CastyMetrics metrics) {
+        this.core = core;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Switches the pipeline to a new client. Commands buffered while the session was starting are
+     * replayed right away, so the core must have refreshed its playback snapshot for the new client
+     * before; otherwise pending commands of the previous session are dropped.
+     *
+     * @param remoteMediaClient client of the new session or null if disconnected
+     */
+    void bind(RemoteMediaClient remoteMediaClient) {
+        this.remoteMediaClient = remoteMediaClient;
+        this.generation++;
+        this.inFlight = 0;
+        this.seekInFlight = false;
+        this.loadInFlight = false;
+        this.playStateInFlight = false;
+        this.sentPlayState = PLAY_STATE_NONE;
+
+        if(remoteMediaClient != null) {
+            expire(pendingLoadResult);
+            expire(pendingSeekResult);
+            expire(pendingPlayStateResult);
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+            flush();
+        }else if(!core.isSessionStarting()) {
+            clearPending(CastyResult.STATUS_FAILED);
+        }
+    }
+
+    /**
+     * Confirms the last play state sent once the receiver reports it. Any status received after
+     * the play/pause request completed reflects the receiver's actual state, so it confirms too.
+     */
+    void onStatusUpdated() {
+
+        if(sentPlayState != PLAY_STATE_NONE && (!playStateInFlight || isReported(sentPlayState))) {
+            sentPlayState = PLAY_STATE_NONE;
+        }
+    }
+
+    /**
+     * Drops commands buffered for a session that failed to start.
+     */
+    void onSessionStartFailed() {
+        clearPending(CastyResult.STATUS_FAILED);
+    }
+
+    CastyResult seek(long position) {
+
+        CastyResult result = new CastyResult();
+
+        if(collapse(pendingSeekResult)) {
+            metrics.onCommandCollapsed();
+        }
+
+        pendingSeekResult = result;
+        pendingSeekPosition = position;
+        scheduleFlush();
+        return result;
+    }
+
+    CastyResult play() {
+        return requestPlayState(PLAY_STATE_PLAY);
+    }
+
+    CastyResult pause() {
+        return requestPlayState(PLAY_STATE_PAUSE);
+    }
+
+    CastyResult togglePlayPause() {
+        return requestPlayState(isEffectivelyPlaying() ? PLAY_STATE_PAUSE : PLAY_STATE_PLAY);
+    }
+
+    /**
+     * Stops playback right away. Pending seeks and play/pause intents are obsolete and dropped.
+     *
+     * @return result of the stop request
+     */
+    CastyResult stop() {
+        clearPending(CastyResult.STATUS_COLLAPSED);
+
+        if(remoteMediaClient == null && core.isSessionStarting()) {
+            return CastyResult.failed();
+        }
+
+        CastyResult result = new CastyResult();
+        sentPlayState = PLAY_STATE_NONE;
+
+        if(remoteMediaClient != null) {
+            track(remoteMediaClient.stop(), result, false);
+        }else {
+            result.complete(CastyResult.STATUS_FAILED);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends a load request, counted against the in-flight limit like any other command.
+     * Pending seeks and play/pause intents target the previous media and are dropped.
+     *
+     * @param mediaData media to load
+     * @return result of the load request
+     */
+    CastyResult load(MediaData mediaData) {
+
+        CastyResult result = new CastyResult();
+
+        clearPending(CastyResult.STATUS_COLLAPSED);
+
+        if(remoteMediaClient != null && inFlight < MAX_IN_FLIGHT) {
+            sendLoad(mediaData, result);
+        }else if(remoteMediaClient != null || core.isSessionStarting()) {
+            pendingLoad = mediaData;
+            pendingLoadResult = result;
+            scheduleFlush();
+        }else {
+            result.complete(CastyResult.STATUS_FAILED);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends a queue request right away. Queue requests are neither coalesced nor buffered, but
+     * they are tracked like any other command and count against {@link #MAX_IN_FLIGHT}. As they do
+     * not wait for a free slot, callers send dependent queue requests one after another.
+     *
+     * @param pendingResult the request issued on the current client
+     * @param replacesMedia true if the request loads new media, so pending commands are obsolete
+     * @return result of the queue request
+     */
+    CastyResult sendQueueRequest(PendingResult<RemoteMediaClient.MediaChannelResult> pendingResult, boolean replacesMedia) {
+
+        CastyResult result = new CastyResult();
+
+        if(replacesMedia) {
+            clearPending(CastyResult.STATUS_COLLAPSED);
+            onLoadSent(result);
+        }
+
+        track(pendingResult, result, false);
+        return result;
+    }
+
+    private void sendLoad(MediaData mediaData, CastyResult result) {
+        onLoadSent(result);
+        track(remoteMediaClient.load(mediaData.getMediaInfo(), mediaData.isAutoPlay(), mediaData.getPosition()), result, false);
+    }
+
+    private void onLoadSent(CastyResult result) {
+
+        sentPlayState = PLAY_STATE_NONE;
+        loadInFlight = true;
+        metrics.onLoadStarted();
+
+        final int sentGeneration = generation;
+
+        result.addOnDone(new Runnable() {
+            @Override
+            public void run() {
+
+                if(sentGeneration == generation) {
+                    loadInFlight = false;
+                }
+            }
+        });
+    }
+
+    private CastyResult requestPlayState(int playState) {
+
+        CastyResult result = new CastyResult();
+
+        if(collapse(pendingPlayStateResult)) {
+            metrics.onCommandCollapsed();
+        }
+
+        pendingPlayState = playState;
+        pendingPlayStateResult = result;
+        scheduleFlush();
+        return result;
+    }
+
+    private static boolean collapse(CastyResult pendingResult) {
+        return pendingResult != null && pendingResult.complete(CastyResult.STATUS_COLLAPSED);
+    }
+
+    private boolean hasPendingLoad() {
+        return pendingLoadResult != null && !pendingLoadResult.isDone();
+    }
+
+    private boolean hasPendingSeek() {
+        return pendingSeekResult != null && !pendingSeekResult.isDone();
+    }
+
+    private boolean hasPendingPlayState() {
+        return pendingPlayStateResult != null && !pendingPlayStateResult.isDone();
+    }
+
+    private boolean isEffectivelyPlaying() {
+
+        if(hasPendingPlayState()) {
+            return pendingPlayState == PLAY_STATE_PLAY;
+        }
+
+        if(sentPlayState != PLAY_STATE_NONE) {
+            return sentPlayState == PLAY_STATE_PLAY;
+        }
+
+        return isReported(PLAY_STATE_PLAY);
+    }
+
+    private boolean isReported(int playState) {
+
+        PlaybackSnapshot snapshot = core.getPlaybackSnapshot();
+
+        if(playState == PLAY_STATE_PLAY) {
+            return snapshot.isPlaying() || snapshot.isBuffering();
+        }
+
+        return snapshot.isPaused();
+    }
+
+    private void scheduleFlush() {
+
+        if(!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, COALESCE_WINDOW);
+        }
+    }
+
+    private void expire(CastyResult pendingResult) {
+
+        if(pendingResult != null && pendingResult.getAge() > PENDING_EXPIRY) {
+            pendingResult.complete(CastyResult.STATUS_TIMEOUT);
+        }
+    }
+
+    private void clearPending(int status) {
+
+        if(pendingLoadResult != null && pendingLoadResult.complete(status) && status == CastyResult.STATUS_COLLAPSED) {
+            metrics.onCommandCollapsed();
+        }
+
+        if(pendingSeekResult != null && pendingSeekResult.complete(status) && status == CastyResult.STATUS_COLLAPSED) {
+            metrics.onCommandCollapsed();
+        }
+
+        if(pendingPlayStateResult != null && pendingPlayStateResult.complete(status) && status == CastyResult.STATUS_COLLAPSED) {
+            metrics.onCommandCollapsed();
+        }
+
+        pendingLoad = null;
+        pendingLoadResult = null;
+        pendingSeekResult = null;
+        pendingPlayStateResult = null;
+        pendingPlayState = PLAY_STATE_NONE;
+        flushScheduled = false;
+        handler.removeCallbacks(flushRunnable);
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            flush();
+        }
+    };
+
+    private void flush() {
+
+        if(remoteMediaClient == null) {
+
+            if(!core.isSessionStarting()) {
+                clearPending(CastyResult.STATUS_FAILED);
+            }
+
+            return;
+        }
+
+        if(hasPendingLoad()) {
+
+            if(inFlight >= MAX_IN_FLIGHT) {
+                return;
+            }
+
+            CastyResult result = pendingLoadResult;
+            MediaData mediaData = pendingLoad;
+            pendingLoad = null;
+            pendingLoadResult = null;
+
+            if(hasPendingSeek()) {
+                mediaData = mediaData.buildUpon().setPosition(pendingSeekPosition).build();
+                completeWith(result, pendingSeekResult);
+                pendingSeekResult = null;
+            }
+
+            sendLoad(mediaData, result);
+        }
+
+        if(loadInFlight) {
+            return;
+        }
+
+        if(hasPendingSeek() && !seekInFlight && inFlight < MAX_IN_FLIGHT) {
+            CastyResult result = pendingSeekResult;
+            pendingSeekResult = null;
+            metrics.onSeekStarted();
+            track(remoteMediaClient.seek(pendingSeekPosition), result, true);
+        }
+
+        if(hasPendingPlayState() && !playStateInFlight && inFlight < MAX_IN_FLIGHT) {
+
+            int playState = pendingPlayState;
+            CastyResult result = pendingPlayStateResult;
+            pendingPlayState = PLAY_STATE_NONE;
+            pendingPlayStateResult = null;
+
+            if(sentPlayState == PLAY_STATE_NONE && isReported(playState)) {
+                metrics.onCommandCollapsed();
+                result.complete(CastyResult.STATUS_SUCCESS);
+            }else {
+                sendPlayState(playState, result);
+            }
+        }
+    }
+
+    private void sendPlayState(int playState, final CastyResult result) {
+
+        sentPlayState = playState;
+        playStateInFlight = true;
+
+        final int sentGeneration = generation;
+
+        result.addOnDone(new Runnable() {
+            @Override
+            public void run() {
+
+                if(sentGeneration != generation) {
+                    return;
+                }
+
+                playStateInFlight = false;
+
+                if(!result.isSuccess()) {
+                    sentPlayState = PLAY_STATE_NONE;
+                }
+            }
+        });
+
+        track(playState == PLAY_STATE_PLAY ? remoteMediaClient.play() : remoteMediaClient.pause(), result, false);
+    }
+
+    /**
+     * Completes a command folded into another one with the status of the command that carried it.
+     */
+    private static void completeWith(final CastyResult carrier, final CastyResult folded) {
+        carrier.addOnDone(new Runnable() {
+            @Override
+            public void run() {
+                folded.complete(carrier.getStatus());
+            }
+        });
+    }
+
+    private void track(PendingResult<RemoteMediaClient.MediaChannelResult> pendingResult, CastyResult result, final boolean seek) {
+
+        metrics.onCommandSent();
+
+        if(pendingResult != null && !result.isDone()) {
+
+            inFlight++;
+            seekInFlight |= seek;
+
+            final int sentGeneration = generation;
+            final CastyResult trackedResult = result;
+
+            result.addOnDone(new Runnable() {
+                @Override
+                public void run() {
+
+                    metrics.onCommandCompleted(trackedResult);
+
+                    if(sentGeneration != generation) {
+                        return;
+                    }
+
+                    inFlight--;
+
+                    if(seek) {
+                        seekInFlight = false;
+                    }
+
+                    if(hasPendingLoad() || hasPendingSeek() || hasPendingPlayState()) {
+                        scheduleFlush();
+                    }
+                }
+            });
+        }
+
+        result.attach(pendingResult);
+    }
+}
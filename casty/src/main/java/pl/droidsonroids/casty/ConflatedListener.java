@@ -0,0 +1,246 @@
+package pl.droidsonroids.casty;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Wraps a listener added with a {@link CastyDispatcher}. Events only update the pending state and
+ * schedule one delivery; the delivery takes whatever is pending at that time. A listener is never
+ * called concurrently and is no longer called once the wrapper is canceled. Events may arrive on
+ * any thread: deliveries scheduled off the main thread are posted to it unless the dispatcher is
+ * thread-safe.
+ *
+ * @param <T> listener type
+ */
+abstract class ConflatedListener<T> implements Runnable {
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    final T listener;
+    private final CastyDispatcher dispatcher;
+    private boolean scheduled;
+    private volatile boolean canceled;
+
+    ConflatedListener(T listener, CastyDispatcher dispatcher) {
+        this.listener = listener;
+        this.dispatcher = dispatcher;
+    }
+
+    void cancel() {
+        canceled = true;
+    }
+
+    /**
+     * Schedules a delivery unless one is pending. Called after the pending state was updated.
+     */
+    final void schedule() {
+
+        synchronized (this) {
+
+            if(scheduled || canceled) {
+                return;
+            }
+
+            scheduled = true;
+        }
+
+        if(dispatcher.isThreadSafe() || Looper.myLooper() == Looper.getMainLooper()) {
+            dispatcher.dispatch(this);
+        }else {
+            mainHandler.post(dispatchRunnable);
+        }
+    }
+
+    private final Runnable dispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatcher.dispatch(ConflatedListener.this);
+        }
+    };
+
+    @Override
+    public final void run() {
+
+        while (!canceled) {
+
+            synchronized (this) {
+
+                if(!takePending()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            deliver();
+        }
+
+        synchronized (this) {
+            scheduled = false;
+        }
+    }
+
+    /**
+     * Moves the pending events to the delivery. Called while holding the lock.
+     *
+     * @return false if nothing is pending
+     */
+    abstract boolean takePending();
+
+    /**
+     * Calls the listener with the events taken by {@link #takePending()}.
+     */
+    abstract void deliver();
+
+    /**
+     * Conflates state changes into one and progress into the latest value.
+     */
+    static final class PlaybackState extends ConflatedListener<OnPlaybackStateChangeListener>
+            implements OnPlaybackStateChangeListener {
+
+        private Casty pendingState;
+        private boolean progressPending;
+        private long pendingPosition;
+        private long pendingDuration;
+
+        private Casty state;
+        private boolean progress;
+        private long position;
+        private long duration;
+
+        PlaybackState(OnPlaybackStateChangeListener listener, CastyDispatcher dispatcher) {
+            super(listener, dispatcher);
+        }
+
+        @Override
+        public void onPlaybackStateChanged(Casty casty) {
+
+            synchronized (this) {
+                pendingState = casty;
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void onProgressChanged(long position, long duration) {
+
+            synchronized (this) {
+                progressPending = true;
+                pendingPosition = position;
+                pendingDuration = duration;
+            }
+
+            schedule();
+        }
+
+        @Override
+        boolean takePending() {
+
+            if(pendingState == null && !progressPending) {
+                return false;
+            }
+
+            state = pendingState;
+            progress = progressPending;
+            position = pendingPosition;
+            duration = pendingDuration;
+            pendingState = null;
+            progressPending = false;
+            return true;
+        }
+
+        @Override
+        void deliver() {
+
+            if(state != null) {
+                listener.onPlaybackStateChanged(state);
+            }
+
+            if(progress) {
+                listener.onProgressChanged(position, duration);
+            }
+        }
+    }
+
+    /**
+     * Conflates connection changes and availability each into the latest value.
+     */
+    static final class ConnectChange extends ConflatedListener<OnConnectChangeListener>
+            implements OnConnectChangeListener {
+
+        private Boolean pendingConnected;
+        private String pendingCastDeviceName;
+        private Boolean pendingCastAvailable;
+
+        private Boolean connected;
+        private String castDeviceName;
+        private Boolean castAvailable;
+
+        ConnectChange(OnConnectChangeListener listener, CastyDispatcher dispatcher) {
+            super(listener, dispatcher);
+        }
+
+        @Override
+        public void onConnected(String castDeviceName) {
+            onConnectionChanged(true, castDeviceName);
+        }
+
+        @Override
+        public void onDisconnected(String castDeviceName) {
+            onConnectionChanged(false, castDeviceName);
+        }
+
+        private void onConnectionChanged(boolean connected, String castDeviceName) {
+
+            synchronized (this) {
+                pendingConnected = connected;
+                pendingCastDeviceName = castDeviceName;
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void onDiscovery(boolean castAvailable) {
+
+            synchronized (this) {
+                pendingCastAvailable = castAvailable;
+            }
+
+            schedule();
+        }
+
+        @Override
+        boolean takePending() {
+
+            if(pendingConnected == null && pendingCastAvailable == null) {
+                return false;
+            }
+
+            connected = pendingConnected;
+            castDeviceName = pendingCastDeviceName;
+            castAvailable = pendingCastAvailable;
+            pendingConnected = null;
+            pendingCastDeviceName = null;
+            pendingCastAvailable = null;
+            return true;
+        }
+
+        @Override
+        void deliver() {
+
+            if(connected != null) {
+
+                if(connected) {
+                    listener.onConnected(castDeviceName);
+                }else {
+                    listener.onDisconnected(castDeviceName);
+                }
+            }
+
+            if(castAvailable != null) {
+                listener.onDiscovery(castAvailable);
+            }
+        }
+    }
+}
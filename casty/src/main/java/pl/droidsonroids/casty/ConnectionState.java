@@ -0,0 +1,49 @@
+package pl.droidsonroids.casty;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+/**
+ * Immutable connection state published by {@link Casty#observeConnection()}.
+ */
+public final class ConnectionState {
+
+    private final boolean connected;
+    private final String castDeviceName;
+
+    ConnectionState(boolean connected, String castDeviceName) {
+        this.connected = connected;
+        this.castDeviceName = castDeviceName;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Gets the name of the device connected to, or last connected to.
+     *
+     * @return the device name or null if unknown
+     */
+    @Nullable
+    public String getCastDeviceName() {
+        return castDeviceName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) return true;
+        if (!(o instanceof ConnectionState)) return false;
+
+        ConnectionState that = (ConnectionState) o;
+
+        return connected == that.connected
+                && TextUtils.equals(castDeviceName, that.castDeviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (connected ? 1 : 0) + (castDeviceName != null ? castDeviceName.hashCode() : 0);
+    }
+}
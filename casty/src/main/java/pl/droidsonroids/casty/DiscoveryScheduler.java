@@ -0,0 +1,129 @@
+package pl.droidsonroids.casty;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v7.media.MediaRouteSelector;
+import android.support.v7.media.MediaRouter;
+
+import com.google.android.gms.cast.framework.CastContext;
+import com.google.android.gms.cast.framework.CastState;
+import com.google.android.gms.cast.framework.CastStateListener;
+
+/**
+ * Schedules device discovery from the modes requested by attached {@link Casty} handles.
+ * Cast state is only observed while at least one attached handle wants discovery, so it is off
+ * when the app is in the background. An active MediaRouter scan only runs while a handle in
+ * {@link Casty#DISCOVERY_ACTIVE} mode is attached and no session is connected.
+ * Availability is cached for {@link #AVAILABILITY_TTL}, so screens attaching in quick succession
+ * reuse it, and repeated values are not dispatched. Must be used from the main thread.
+ */
+final class DiscoveryScheduler {
+
+    static final long AVAILABILITY_TTL = 30000;
+
+    private final CastContext castContext;
+    private final MediaRouter mediaRouter;
+    private final ListenerRegistry<Casty> handles;
+    private final CastyMetrics metrics;
+
+    private boolean listening;
+    private boolean scanning;
+    private long scanStartedAt;
+    private Boolean castAvailable;
+    private long castAvailableAt;
+
+    DiscoveryScheduler(Context context, CastContext castContext, ListenerRegistry<Casty> handles, CastyMetrics metrics) {
+        this.castContext = castContext;
+        this.mediaRouter = MediaRouter.getInstance(context);
+        this.handles = handles;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Re-evaluates listening and scanning after handles attached, detached or changed mode.
+     *
+     * @param connected true if a session is connected
+     */
+    void update(boolean connected) {
+
+        boolean listen = false;
+        boolean scan = false;
+
+        for (Casty casty : handles.snapshot()) {
+
+            int mode = casty.getDiscoveryMode();
+
+            listen |= mode != Casty.DISCOVERY_OFF;
+            scan |= mode == Casty.DISCOVERY_ACTIVE;
+        }
+
+        scan &= listen && !connected;
+
+        if(listen != listening) {
+            listening = listen;
+
+            if(listen) {
+                metrics.onDiscoveryWakeUp();
+                castContext.addCastStateListener(castStateListener);
+            }else {
+                castContext.removeCastStateListener(castStateListener);
+            }
+        }
+
+        if(scan != scanning) {
+            MediaRouteSelector selector = castContext.getMergedSelector();
+
+            if(scan && selector != null) {
+                scanning = true;
+                scanStartedAt = SystemClock.elapsedRealtime();
+                metrics.onDiscoveryWakeUp();
+                mediaRouter.addCallback(selector, routerCallback, MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN);
+            }else if(!scan) {
+                scanning = false;
+                metrics.onDiscoveryScan(SystemClock.elapsedRealtime() - scanStartedAt);
+                mediaRouter.removeCallback(routerCallback);
+            }
+        }
+    }
+
+    /**
+     * Gets the device availability, from the cache while it is fresh.
+     *
+     * @return true if a cast device is available
+     */
+    boolean isCastAvailable() {
+
+        if(castAvailable == null || SystemClock.elapsedRealtime() - castAvailableAt > AVAILABILITY_TTL) {
+            setCastAvailable(castContext.getCastState() != CastState.NO_DEVICES_AVAILABLE);
+        }
+
+        return castAvailable;
+    }
+
+    private boolean setCastAvailable(boolean available) {
+
+        boolean changed = castAvailable == null || castAvailable != available;
+
+        castAvailable = available;
+        castAvailableAt = SystemClock.elapsedRealtime();
+        return changed;
+    }
+
+    private final CastStateListener castStateListener = new CastStateListener() {
+        @Override
+        public void onCastStateChanged(int state) {
+
+            if(!setCastAvailable(state != CastState.NO_DEVICES_AVAILABLE)) {
+                metrics.onDiscoveryEventSuppressed();
+                return;
+            }
+
+            for (Casty casty : handles.snapshot()) {
+                casty.dispatchDiscovery(castAvailable);
+            }
+        }
+    };
+
+    private final MediaRouter.Callback routerCallback = new MediaRouter.Callback() {
+    };
+}
@@ -0,0 +1,153 @@
+package pl.droidsonroids.casty;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of durations in milliseconds with power-of-two buckets. Recording is
+ * lock-free and does not allocate, so it is safe on hot paths and from any thread.
+ */
+public final class LatencyHistogram {
+
+    static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records a duration. Negative values are ignored.
+     *
+     * @param millis duration in milliseconds
+     */
+    void record(long millis) {
+
+        if(millis < 0) {
+            return;
+        }
+
+        buckets.incrementAndGet(bucketOf(millis));
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+
+        long currentMax;
+
+        do {
+            currentMax = max.get();
+        } while (millis > currentMax && !max.compareAndSet(currentMax, millis));
+    }
+
+    void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Copies the current state. The copy is not atomic across buckets, which is fine for telemetry.
+     *
+     * @return an immutable snapshot
+     */
+    public Snapshot snapshot() {
+
+        long[] counts = new long[BUCKET_COUNT];
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+        }
+
+        return new Snapshot(counts, count.get(), sum.get(), max.get());
+    }
+
+    private static int bucketOf(long millis) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    /**
+     * Upper bound of a bucket, i.e. the largest value it can hold.
+     */
+    static long bucketUpperBound(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+
+    /**
+     * Immutable copy of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot {
+
+        private final long[] bucketCounts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] bucketCounts, long count, long sum, long max) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Gets an upper estimate of a percentile, accurate to the bucket resolution.
+         *
+         * @param percentile value between 0 and 100
+         * @return the upper bound of the bucket holding the percentile, 0 if empty
+         */
+        public long getPercentile(double percentile) {
+
+            long total = 0;
+
+            for (long bucketCount : bucketCounts) {
+                total += bucketCount;
+            }
+
+            if(total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100d);
+            long seen = 0;
+
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+
+                if(seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+
+            return max;
+        }
+
+        /**
+         * Gets the raw bucket counts. Bucket {@code i > 0} holds values in {@code [2^(i-1), 2^i)},
+         * bucket 0 holds zeros.
+         *
+         * @return a copy of the bucket counts
+         */
+        public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+    }
+}
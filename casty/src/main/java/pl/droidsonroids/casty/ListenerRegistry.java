@@ -0,0 +1,100 @@
+package pl.droidsonroids.casty;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write set of listeners. Dispatch walks the array returned by {@link #snapshot()},
+ * which never changes after publication, so it does not allocate and tolerates listeners
+ * adding or removing themselves during a callback. Add and remove are safe from any thread.
+ *
+ * @param <T> listener type
+ */
+final class ListenerRegistry<T> {
+
+    private final T[] empty;
+    private volatile T[] listeners;
+
+    /**
+     * @param empty zero-length array of the listener type, shared by every empty snapshot
+     */
+    ListenerRegistry(T[] empty) {
+        this.empty = empty;
+        this.listeners = empty;
+    }
+
+    /**
+     * Adds a listener unless it is already registered.
+     *
+     * @param listener listener to add
+     * @return true if the listener was added
+     */
+    synchronized boolean add(T listener) {
+
+        T[] current = listeners;
+
+        if(indexOf(current, listener) >= 0) {
+            return false;
+        }
+
+        T[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+        return true;
+    }
+
+    /**
+     * Removes a listener. Dispatch already in progress still sees the previous snapshot.
+     *
+     * @param listener listener to remove
+     * @return true if the listener was registered
+     */
+    synchronized boolean remove(T listener) {
+
+        T[] current = listeners;
+        int index = indexOf(current, listener);
+
+        if(index < 0) {
+            return false;
+        }
+
+        if(current.length == 1) {
+            listeners = empty;
+            return true;
+        }
+
+        T[] updated = Arrays.copyOf(empty, current.length - 1);
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        listeners = updated;
+        return true;
+    }
+
+    synchronized void clear() {
+        listeners = empty;
+    }
+
+    boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    /**
+     * Gets the current listeners. The returned array must not be modified.
+     *
+     * @return immutable snapshot of registered listeners
+     */
+    T[] snapshot() {
+        return listeners;
+    }
+
+    private static int indexOf(Object[] array, Object listener) {
+
+        for (int i = 0; i < array.length; i++) {
+
+            if(array[i].equals(listener)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
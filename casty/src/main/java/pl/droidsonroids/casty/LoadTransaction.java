@@ -0,0 +1,102 @@
+package pl.droidsonroids.casty;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.framework.media.widget.ExpandedControllerActivity;
+
+/**
+ * A single {@code load} issued through {@link Casty#play(MediaData)}. It is correlated with its own
+ * load request rather than with status updates: the receiver answers a load only once the new
+ * media is loaded, so the transaction finishes when that answer arrives, on failure or after
+ * {@link #TIMEOUT}, and launches the expanded controller at most once. Reloading the media that is
+ * already playing is therefore not mistaken for a finished load. A newer transaction supersedes an
+ * unfinished one. Must be used from the main thread.
+ */
+final class LoadTransaction {
+
+    static final long TIMEOUT = 30000;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Casty origin;
+    private final Class<? extends ExpandedControllerActivity> expandedControllerActivity;
+    private final CastyMetrics metrics;
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private CastyResult result;
+    private boolean finished;
+
+    LoadTransaction(Casty origin, Class<? extends ExpandedControllerActivity> expandedControllerActivity, CastyMetrics metrics) {
+        this.origin = origin;
+        this.expandedControllerActivity = expandedControllerActivity;
+        this.metrics = metrics;
+        mainHandler.postDelayed(timeoutRunnable, TIMEOUT);
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Binds the load request. A successful answer finishes the transaction and launches the
+     * expanded controller; a failed, timed out or canceled request only finishes it.
+     *
+     * @param result result of the load request
+     */
+    void setResult(final CastyResult result) {
+        this.result = result;
+
+        result.addOnDone(new Runnable() {
+            @Override
+            public void run() {
+
+                if(finished) {
+                    return;
+                }
+
+                finish();
+
+                if(result.isSuccess()) {
+                    metrics.onLoadCompleted(SystemClock.elapsedRealtime() - startedAt);
+
+                    if(expandedControllerActivity != null) {
+                        origin.startExpandedController(expandedControllerActivity);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Finishes the transaction without launching anything, e.g. because a newer load was issued.
+     */
+    void supersede() {
+        complete(CastyResult.STATUS_COLLAPSED);
+    }
+
+    private void complete(int status) {
+
+        if(finished) {
+            return;
+        }
+
+        finish();
+
+        if(result != null) {
+            result.complete(status);
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        mainHandler.removeCallbacks(timeoutRunnable);
+    }
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            complete(CastyResult.STATUS_TIMEOUT);
+        }
+    };
+}
@@ -0,0 +1,727 @@
+package pl.droidsonroids.casty;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded HTTP server that makes on-device files and {@code content://} streams reachable by the
+ * receiver. It runs on a single selector thread, supports byte-range requests and keep-alive, and
+ * sends bodies with {@link FileChannel#transferTo}, so data is not copied through the Java heap.
+ * Media is opened on a small separate thread pool, so a slow content provider only delays its own
+ * request; requests arriving while the pool and its queue are full are answered with
+ * {@code 503 Service Unavailable}. Requests that cannot be served are answered with an HTTP error status.
+ * <p>
+ * Served media is addressed by an unguessable token and stays available until {@link #unserve(String)}
+ * or {@link #stop()}.
+ */
+public final class LocalMediaServer {
+
+    private static final String TAG = "LocalMediaServer";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final long TRANSFER_CHUNK = 512 * 1024;
+    private static final int OPENER_THREADS = 3;
+    private static final int OPENER_QUEUE_SIZE = 32;
+    private static final long OPENER_KEEP_ALIVE_SECONDS = 30;
+
+    private static LocalMediaServer instance;
+
+    private final ContentResolver contentResolver;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Connection> opened = new ConcurrentLinkedQueue<>();
+    private final ThreadPoolExecutor opener = createOpener();
+    private final SecureRandom random = new SecureRandom();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile int port;
+
+    /**
+     * Gets the process-wide server. It is started lazily by the first {@code serve} call.
+     *
+     * @param context any context, only the application context is retained
+     * @return the shared LocalMediaServer
+     */
+    public static synchronized LocalMediaServer getInstance(@NonNull Context context) {
+
+        if(context == null) {
+            throw new NullPointerException("Context cannot be null");
+        }
+
+        if(instance == null) {
+            instance = new LocalMediaServer(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private LocalMediaServer(Context context) {
+        this.contentResolver = context.getContentResolver();
+    }
+
+    private static ThreadPoolExecutor createOpener() {
+
+        ThreadPoolExecutor opener = new ThreadPoolExecutor(OPENER_THREADS, OPENER_THREADS,
+                OPENER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(OPENER_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "casty-media-opener");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        opener.allowCoreThreadTimeOut(true);
+        return opener;
+    }
+
+    /**
+     * Serves a local file.
+     *
+     * @param file readable file
+     * @param contentType content type sent to the receiver, e.g. "video/mp4"
+     * @return the url under which the receiver can fetch the file
+     * @throws IOException if the server could not be started
+     */
+    public String serve(@NonNull File file, @NonNull String contentType) throws IOException {
+        return register(new Entry(file, null, contentType), file.getName());
+    }
+
+    /**
+     * Serves a {@code content://} or {@code file://} uri.
+     *
+     * @param uri uri readable through the {@link ContentResolver}
+     * @param contentType content type sent to the receiver, e.g. "audio/mpeg"
+     * @return the url under which the receiver can fetch the content
+     * @throws IOException if the server could not be started
+     */
+    public String serve(@NonNull Uri uri, @NonNull String contentType) throws IOException {
+        return register(new Entry(null, uri, contentType), uri.getLastPathSegment());
+    }
+
+    /**
+     * Creates a {@link MediaData.Builder} for a local file, with url, content type and
+     * {@link MediaData#STREAM_TYPE_BUFFERED} already set.
+     *
+     * @param file readable file
+     * @param contentType content type sent to the receiver
+     * @return a builder pointing at this server
+     * @throws IOException if the server could not be started
+     */
+    public MediaData.Builder createMediaDataBuilder(@NonNull File file, @NonNull String contentType) throws IOException {
+
+        return new MediaData.Builder(serve(file, contentType))
+                .setContentType(contentType)
+                .setStreamType(MediaData.STREAM_TYPE_BUFFERED);
+    }
+
+    /**
+     * Creates a {@link MediaData.Builder} for a {@code content://} uri, with url, content type and
+     * {@link MediaData#STREAM_TYPE_BUFFERED} already set.
+     *
+     * @param uri uri readable through the {@link ContentResolver}
+     * @param contentType content type sent to the receiver
+     * @return a builder pointing at this server
+     * @throws IOException if the server could not be started
+     */
+    public MediaData.Builder createMediaDataBuilder(@NonNull Uri uri, @NonNull String contentType) throws IOException {
+
+        return new MediaData.Builder(serve(uri, contentType))
+                .setContentType(contentType)
+                .setStreamType(MediaData.STREAM_TYPE_BUFFERED);
+    }
+
+    /**
+     * Stops serving the media behind a url returned by {@code serve}. Transfers in progress complete.
+     *
+     * @param url url returned by {@code serve}
+     */
+    public void unserve(@NonNull String url) {
+
+        int tokenStart = url.indexOf('/', url.indexOf("//") + 2);
+
+        if(tokenStart >= 0) {
+            entries.remove(tokenOf(url.substring(tokenStart)));
+        }
+    }
+
+    /**
+     * Stops the server and forgets all served media.
+     */
+    public synchronized void stop() {
+
+        entries.clear();
+
+        if(thread != null) {
+            thread.interrupt();
+            selector.wakeup();
+            thread = null;
+        }
+    }
+
+    private String register(Entry entry, String name) throws IOException {
+
+        if(entry.contentType == null) {
+            throw new NullPointerException("Content type cannot be null");
+        }
+
+        ensureStarted();
+
+        String token = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+        entries.put(token, entry);
+
+        String path = name == null ? token : token + "/" + Uri.encode(name);
+        return "http://" + findHostAddress() + ":" + port + "/" + path;
+    }
+
+    private synchronized void ensureStarted() throws IOException {
+
+        if(thread != null) {
+            return;
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(0));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        port = serverChannel.socket().getLocalPort();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "casty-media-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+
+        Selector selector = this.selector;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+
+                Connection connection;
+
+                while ((connection = opened.poll()) != null) {
+
+                    try {
+                        connection.onOpened();
+                    } catch (IOException e) {
+                        close(connection.key);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if(!key.isValid()) {
+                        continue;
+                    }
+
+                    try {
+                        if(key.isAcceptable()) {
+                            accept(selector);
+                        }else if(key.isReadable()) {
+                            ((Connection) key.attachment()).read(key);
+                        }else if(key.isWritable()) {
+                            ((Connection) key.attachment()).write(key);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Media server stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept(Selector selector) throws IOException {
+
+        SocketChannel channel = serverChannel.accept();
+
+        if(channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private static void close(SelectionKey key) {
+
+        Object attachment = key.attachment();
+
+        if(attachment instanceof Connection) {
+            ((Connection) attachment).close();
+        }else {
+            closeQuietly(key.channel());
+        }
+
+        key.cancel();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+        if(closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String tokenOf(String path) {
+
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.indexOf('/', start);
+        return path.substring(start, end < 0 ? path.length() : end);
+    }
+
+    private static String findHostAddress() throws IOException {
+
+        String fallback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+
+        for (NetworkInterface networkInterface : Collections.list(interfaces)) {
+
+            if(!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+
+                if(address instanceof Inet4Address && address.isSiteLocalAddress()) {
+
+                    if(networkInterface.getName().startsWith("wlan")) {
+                        return address.getHostAddress();
+                    }
+
+                    if(fallback == null) {
+                        fallback = address.getHostAddress();
+                    }
+                }
+            }
+        }
+
+        if(fallback == null) {
+            throw new IOException("No local network address available");
+        }
+
+        return fallback;
+    }
+
+    /**
+     * Media registered under a token, either a file or a content uri.
+     */
+    private final class Entry {
+
+        final File file;
+        final Uri uri;
+        final String contentType;
+
+        Entry(File file, Uri uri, String contentType) {
+            this.file = file;
+            this.uri = uri;
+            this.contentType = contentType;
+        }
+
+        Source open() throws IOException {
+
+            if(file != null) {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                FileChannel channel = randomAccessFile.getChannel();
+                return new Source(channel, 0, channel.size(), randomAccessFile);
+            }
+
+            AssetFileDescriptor descriptor = contentResolver.openAssetFileDescriptor(uri, "r");
+
+            if(descriptor == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+
+            FileInputStream inputStream = descriptor.createInputStream();
+            FileChannel channel = inputStream.getChannel();
+            long offset = descriptor.getStartOffset();
+            long length = descriptor.getLength();
+
+            if(length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                length = channel.size() - offset;
+            }
+
+            return new Source(channel, offset, length, descriptor);
+        }
+    }
+
+    /**
+     * Open channel with the byte window holding the media.
+     */
+    private static final class Source {
+
+        final FileChannel channel;
+        final long offset;
+        final long length;
+        final Closeable closeable;
+
+        Source(FileChannel channel, long offset, long length, Closeable closeable) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.closeable = closeable;
+        }
+    }
+
+    /**
+     * State of one keep-alive client connection.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        private SelectionKey key;
+        private ByteBuffer responseHeader;
+        private Source source;
+        private long position;
+        private long remaining;
+        private boolean keepAlive;
+
+        private Entry openingEntry;
+        private String openingRange;
+        private boolean openingHead;
+        private Source openedSource;
+        private String openFailure;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read(SelectionKey key) throws IOException {
+
+            if(channel.read(requestBuffer) < 0) {
+                LocalMediaServer.close(key);
+                return;
+            }
+
+            int headerEnd = findHeaderEnd();
+
+            if(headerEnd < 0) {
+
+                if(!requestBuffer.hasRemaining()) {
+                    requestBuffer.clear();
+                    keepAlive = false;
+                    respondStatus("431 Request Header Fields Too Large");
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    write(key);
+                }
+
+                return;
+            }
+
+            String request = new String(requestBuffer.array(), 0, headerEnd, ASCII);
+            int consumed = headerEnd + 4;
+            int leftover = requestBuffer.position() - consumed;
+            System.arraycopy(requestBuffer.array(), consumed, requestBuffer.array(), 0, leftover);
+            requestBuffer.position(leftover);
+
+            handle(request);
+
+            if(openingEntry != null) {
+                key.interestOps(0);
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        /**
+         * Answers the request once its media was opened on the opener pool. Called on the
+         * selector thread.
+         */
+        void onOpened() throws IOException {
+
+            Entry entry = openingEntry;
+            Source source = openedSource;
+            openingEntry = null;
+            openedSource = null;
+
+            if(!key.isValid()) {
+
+                if(source != null) {
+                    closeQuietly(source.closeable);
+                }
+
+                return;
+            }
+
+            if(source == null) {
+                respondStatus(openFailure);
+            }else {
+                respondSource(entry, source, openingRange, openingHead);
+            }
+
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        void write(SelectionKey key) throws IOException {
+
+            if(responseHeader.hasRemaining()) {
+                channel.write(responseHeader);
+
+                if(responseHeader.hasRemaining()) {
+                    return;
+                }
+            }
+
+            while (remaining > 0) {
+
+                long written = source.channel.transferTo(position, Math.min(remaining, TRANSFER_CHUNK), channel);
+
+                if(written <= 0) {
+                    return;
+                }
+
+                position += written;
+                remaining -= written;
+            }
+
+            releaseSource();
+
+            if(!keepAlive) {
+                LocalMediaServer.close(key);
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+
+            if(findHeaderEnd() >= 0) {
+                read(key);
+            }
+        }
+
+        void close() {
+            releaseSource();
+            closeQuietly(channel);
+        }
+
+        private void releaseSource() {
+
+            if(source != null) {
+                closeQuietly(source.closeable);
+                source = null;
+            }
+
+            remaining = 0;
+        }
+
+        private int findHeaderEnd() {
+
+            byte[] bytes = requestBuffer.array();
+
+            for (int i = 0; i + 3 < requestBuffer.position(); i++) {
+
+                if(bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private void handle(String request) {
+
+            String[] lines = request.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+
+            String range = null;
+            keepAlive = requestLine.length > 2 && "HTTP/1.1".equals(requestLine[2]);
+
+            for (int i = 1; i < lines.length; i++) {
+
+                int colon = lines[i].indexOf(':');
+
+                if(colon <= 0) {
+                    continue;
+                }
+
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim();
+
+                if("range".equals(name)) {
+                    range = value;
+                }else if("connection".equals(name)) {
+                    keepAlive = !"close".equalsIgnoreCase(value);
+                }
+            }
+
+            if(requestLine.length < 2) {
+                respondStatus("400 Bad Request");
+                return;
+            }
+
+            boolean head = "HEAD".equals(requestLine[0]);
+
+            if(!head && !"GET".equals(requestLine[0])) {
+                respondStatus("405 Method Not Allowed");
+                return;
+            }
+
+            final Entry entry = entries.get(tokenOf(requestLine[1]));
+
+            if(entry == null) {
+                respondStatus("404 Not Found");
+                return;
+            }
+
+            openingEntry = entry;
+            openingRange = range;
+            openingHead = head;
+
+            try {
+                opener.execute(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        try {
+                            openedSource = entry.open();
+                        } catch (FileNotFoundException e) {
+                            openFailure = "404 Not Found";
+                        } catch (IOException | RuntimeException e) {
+                            Log.w(TAG, "Cannot open media", e);
+                            openFailure = "500 Internal Server Error";
+                        }
+
+                        opened.add(Connection.this);
+                        key.selector().wakeup();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                openingEntry = null;
+                respondStatus("503 Service Unavailable");
+            }
+        }
+
+        private void respondSource(Entry entry, Source source, String range, boolean head) {
+
+            long start = 0;
+            long end = source.length - 1;
+            boolean partial = false;
+
+            if(range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+
+                String spec = range.substring(6).trim();
+                int dash = spec.indexOf('-');
+
+                try {
+                    if(dash == 0) {
+                        start = Math.max(0, source.length - Long.parseLong(spec.substring(1)));
+                    }else if(dash > 0) {
+                        start = Long.parseLong(spec.substring(0, dash));
+
+                        if(dash < spec.length() - 1) {
+                            end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                        }
+                    }
+
+                    partial = dash >= 0;
+                } catch (NumberFormatException e) {
+                    partial = false;
+                    start = 0;
+                }
+
+                if(partial && (start > end || start >= source.length)) {
+                    closeQuietly(source.closeable);
+                    respond("416 Range Not Satisfiable", "Content-Range: bytes */" + source.length + "\r\n", 0);
+                    return;
+                }
+            }
+
+            long length = end - start + 1;
+            StringBuilder headers = new StringBuilder()
+                    .append("Content-Type: ").append(entry.contentType).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n");
+
+            if(partial) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(source.length).append("\r\n");
+            }
+
+            respond(partial ? "206 Partial Content" : "200 OK", headers.toString(), length);
+
+            if(head) {
+                closeQuietly(source.closeable);
+                return;
+            }
+
+            this.source = source;
+            this.position = source.offset + start;
+            this.remaining = length;
+        }
+
+        private void respondStatus(String status) {
+            respond(status, "", 0);
+        }
+
+        private void respond(String status, String headers, long contentLength) {
+
+            String header = "HTTP/1.1 " + status + "\r\n"
+                    + headers
+                    + "Content-Length: " + contentLength + "\r\n"
+                    + "Access-Control-Allow-Origin: *\r\n"
+                    + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                    + "\r\n";
+
+            responseHeader = ByteBuffer.wrap(header.getBytes(ASCII));
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package pl.droidsonroids.casty;
 
 import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
 import com.google.android.gms.common.images.WebImage;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * Media information class
+ * Media information class. Instances are immutable; use {@link #buildUpon()} to derive a modified copy.
+ * The {@link MediaInfo} sent to the receiver is built lazily once and shared by all copies which
+ * only differ in {@link #isAutoPlay()} or {@link #getPosition()}. For persistence and large lists,
+ * see {@link MediaDataCodec}.
  */
-public class MediaData {
+public class MediaData implements Parcelable {
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({STREAM_TYPE_NONE, STREAM_TYPE_BUFFERED, STREAM_TYPE_LIVE})
     public @interface StreamType {}
@@ -34,59 +41,161 @@ public class MediaData {
     public static final int MEDIA_TYPE_USER = 100;
 
     public static final long UNKNOWN_DURATION = -1L;
+    /**
+     * Start position resuming from the one stored in the {@link ResumeStore}, or from the start if
+     * none is stored.
+     */
+    public static final long POSITION_RESUME = -1L;
+
+    private static final String[] NO_IMAGE_URLS = new String[0];
+
+    private final String url;
+    private final int streamType;
+    private final String contentType;
+    private final long streamDuration;
+
+    private final int mediaType;
+    private final String title;
+    private final String subtitle;
+
+    private final boolean autoPlay;
+    private final long position;
+
+    private final String[] imageUrls;
+    private final MediaInfoCache mediaInfoCache;
+    private int hashCode;
+
+    private MediaData(Builder builder) {
+        this.url = builder.url;
+        this.streamType = builder.streamType;
+        this.contentType = builder.contentType;
+        this.streamDuration = builder.streamDuration;
+        this.mediaType = builder.mediaType;
+        this.title = builder.title;
+        this.subtitle = builder.subtitle;
+        this.autoPlay = builder.autoPlay;
+        this.position = builder.position;
+        this.imageUrls = builder.imageUrls;
+        this.mediaInfoCache = builder.mediaInfoCache;
+    }
+
+    private MediaData(Parcel in) {
+        this.url = in.readString();
+        this.streamType = in.readInt();
+        this.contentType = in.readString();
+        this.streamDuration = in.readLong();
+        this.mediaType = in.readInt();
+        this.title = in.readString();
+        this.subtitle = in.readString();
+        this.autoPlay = in.readByte() != 0;
+        this.position = in.readLong();
+        this.imageUrls = in.createStringArray();
+        this.mediaInfoCache = new MediaInfoCache();
+    }
 
-    private String url;
-    private int streamType = STREAM_TYPE_NONE;
-    private String contentType;
-    private long streamDuration = UNKNOWN_DURATION;
+    public static final Creator<MediaData> CREATOR = new Creator<MediaData>() {
+        @Override
+        public MediaData createFromParcel(Parcel in) {
+            return new MediaData(in);
+        }
 
-    private int mediaType = MEDIA_TYPE_GENERIC;
-    private String title;
-    private String subtitle;
+        @Override
+        public MediaData[] newArray(int size) {
+            return new MediaData[size];
+        }
+    };
 
-    boolean autoPlay = true;
-    long position;
+    @Override
+    public int describeContents() {
+        return 0;
+    }
 
-    private List<String> imageUrls;
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(url);
+        dest.writeInt(streamType);
+        dest.writeString(contentType);
+        dest.writeLong(streamDuration);
+        dest.writeInt(mediaType);
+        dest.writeString(title);
+        dest.writeString(subtitle);
+        dest.writeByte((byte) (autoPlay ? 1 : 0));
+        dest.writeLong(position);
+        dest.writeStringArray(imageUrls);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    @StreamType
+    public int getStreamType() {
+        return streamType;
+    }
 
-    private MediaData(String url) {
-        this.url = url;
-        imageUrls = new ArrayList<>();
+    public String getContentType() {
+        return contentType;
     }
 
-    private void setStreamType(int streamType) {
-        this.streamType = streamType;
+    public long getStreamDuration() {
+        return streamDuration;
     }
 
-    private void setContentType(String contentType) {
-        this.contentType = contentType;
+    @MediaType
+    public int getMediaType() {
+        return mediaType;
     }
 
-    private void setStreamDuration(long streamDuration) {
-        this.streamDuration = streamDuration;
+    public String getTitle() {
+        return title;
     }
 
-    private void setTitle(String title) {
-        this.title = title;
+    public String getSubtitle() {
+        return subtitle;
     }
 
-    private void setSubtitle(String subtitle) {
-        this.subtitle = subtitle;
+    public List<String> getImageUrls() {
+        return Collections.unmodifiableList(Arrays.asList(imageUrls));
     }
 
-    private void setMediaType(int mediaType) {
-        this.mediaType = mediaType;
+    String[] getImageUrlArray() {
+        return imageUrls;
     }
 
-    private void setAutoPlay(boolean autoPlay) {
-        this.autoPlay = autoPlay;
+    public boolean isAutoPlay() {
+        return autoPlay;
     }
 
-    private void setPosition(long position) {
-        this.position = position;
+    public long getPosition() {
+        return position;
     }
 
-    MediaInfo createMediaInfo() {
+    /**
+     * Creates a builder initialized with this media data. It shares its state with this instance
+     * until modified, so deriving a copy with e.g. a different position is cheap.
+     *
+     * @return a new builder
+     */
+    public Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    /**
+     * Gets the {@link MediaInfo}, building it on first use.
+     */
+    MediaInfo getMediaInfo() {
+
+        MediaInfo mediaInfo = mediaInfoCache.mediaInfo;
+
+        if(mediaInfo == null) {
+            mediaInfo = createMediaInfo();
+            mediaInfoCache.mediaInfo = mediaInfo;
+        }
+
+        return mediaInfo;
+    }
+
+    private MediaInfo createMediaInfo() {
         MediaMetadata mediaMetadata = new MediaMetadata(mediaType);
 
         if (!TextUtils.isEmpty(title)) mediaMetadata.putString(MediaMetadata.KEY_TITLE, title);
@@ -104,15 +213,94 @@ public class MediaData {
                 .build();
     }
 
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) return true;
+        if (!(o instanceof MediaData)) return false;
+
+        MediaData mediaData = (MediaData) o;
+
+        return streamType == mediaData.streamType
+                && streamDuration == mediaData.streamDuration
+                && mediaType == mediaData.mediaType
+                && autoPlay == mediaData.autoPlay
+                && position == mediaData.position
+                && TextUtils.equals(url, mediaData.url)
+                && TextUtils.equals(contentType, mediaData.contentType)
+                && TextUtils.equals(title, mediaData.title)
+                && TextUtils.equals(subtitle, mediaData.subtitle)
+                && Arrays.equals(imageUrls, mediaData.imageUrls);
+    }
+
+    @Override
+    public int hashCode() {
+
+        int result = hashCode;
+
+        if (result == 0) {
+            result = url != null ? url.hashCode() : 0;
+            result = 31 * result + streamType;
+            result = 31 * result + (contentType != null ? contentType.hashCode() : 0);
+            result = 31 * result + (int) (streamDuration ^ (streamDuration >>> 32));
+            result = 31 * result + mediaType;
+            result = 31 * result + (title != null ? title.hashCode() : 0);
+            result = 31 * result + (subtitle != null ? subtitle.hashCode() : 0);
+            result = 31 * result + (autoPlay ? 1 : 0);
+            result = 31 * result + (int) (position ^ (position >>> 32));
+            result = 31 * result + Arrays.hashCode(imageUrls);
+            hashCode = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Holds the lazily built {@link MediaInfo}, shared by instances with the same content.
+     */
+    private static final class MediaInfoCache {
+        volatile MediaInfo mediaInfo;
+    }
+
     public static class Builder {
-        private final MediaData mediaData;
+        private String url;
+        private int streamType = STREAM_TYPE_NONE;
+        private String contentType;
+        private long streamDuration = UNKNOWN_DURATION;
+        private int mediaType = MEDIA_TYPE_GENERIC;
+        private String title;
+        private String subtitle;
+        private boolean autoPlay = true;
+        private long position;
+        /**
+         * Grown on demand; once full it may be shared with built instances, so it is only written
+         * below {@link #imageUrlCount} when it has spare capacity.
+         */
+        private String[] imageUrls = NO_IMAGE_URLS;
+        private int imageUrlCount;
+        private MediaInfoCache mediaInfoCache;
 
         /**
          * Create the MediaData builder
          * @param url String url of media data
          */
         public Builder(String url) {
-            mediaData = new MediaData(url);
+            this.url = url;
+        }
+
+        private Builder(MediaData mediaData) {
+            this.url = mediaData.url;
+            this.streamType = mediaData.streamType;
+            this.contentType = mediaData.contentType;
+            this.streamDuration = mediaData.streamDuration;
+            this.mediaType = mediaData.mediaType;
+            this.title = mediaData.title;
+            this.subtitle = mediaData.subtitle;
+            this.autoPlay = mediaData.autoPlay;
+            this.position = mediaData.position;
+            this.imageUrls = mediaData.imageUrls;
+            this.imageUrlCount = mediaData.imageUrls.length;
+            this.mediaInfoCache = mediaData.mediaInfoCache;
         }
 
         /**
@@ -121,7 +309,8 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setStreamType(@StreamType int streamType) {
-            mediaData.setStreamType(streamType);
+            this.streamType = streamType;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -131,7 +320,8 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setContentType(String contentType) {
-            mediaData.setContentType(contentType);
+            this.contentType = contentType;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -141,7 +331,8 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setStreamDuration(long streamDuration) {
-            mediaData.setStreamDuration(streamDuration);
+            this.streamDuration = streamDuration;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -151,7 +342,8 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setTitle(String title) {
-            mediaData.setTitle(title);
+            this.title = title;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -161,7 +353,8 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setSubtitle(String subtitle) {
-            mediaData.setSubtitle(subtitle);
+            this.subtitle = subtitle;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -172,7 +365,8 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setMediaType(@MediaType int mediaType) {
-            mediaData.setMediaType(mediaType);
+            this.mediaType = mediaType;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -181,8 +375,18 @@ public class MediaData {
          * @param photoUrl valid url to image
          * @return this instance for chain calls
          */
-        public Builder addPhotoUrl(String photoUrl) {
-            mediaData.imageUrls.add(photoUrl);
+        public Builder addPhotoUrl(@NonNull String photoUrl) {
+
+            if (photoUrl == null) {
+                throw new NullPointerException("Photo url cannot be null");
+            }
+
+            if (imageUrlCount == imageUrls.length) {
+                imageUrls = Arrays.copyOf(imageUrls, imageUrlCount * 2 + 1);
+            }
+
+            imageUrls[imageUrlCount++] = photoUrl;
+            this.mediaInfoCache = null;
             return this;
         }
 
@@ -192,22 +396,36 @@ public class MediaData {
          * @return this instance for chain calls
          */
         public Builder setAutoPlay(boolean autoPlay) {
-            mediaData.autoPlay = autoPlay;
+            this.autoPlay = autoPlay;
             return this;
         }
 
         /**
-         * Sets the start position
-         * @param position Start position of video in milliseconds
+         * Sets the start position, the start of the stream by default
+         * @param position Start position of video in milliseconds or {@link #POSITION_RESUME}
          * @return this instance for chain calls
          */
         public Builder setPosition(long position) {
-            mediaData.position = position;
+            this.position = position;
             return this;
         }
 
+        /**
+         * Builds a new immutable instance. The builder can be reused; instances built from it
+         * share unchanged state.
+         * @return a new MediaData
+         */
         public MediaData build() {
-            return this.mediaData;
+
+            if (imageUrlCount != imageUrls.length) {
+                imageUrls = Arrays.copyOf(imageUrls, imageUrlCount);
+            }
+
+            if (mediaInfoCache == null) {
+                mediaInfoCache = new MediaInfoCache();
+            }
+
+            return new MediaData(this);
         }
     }
 }
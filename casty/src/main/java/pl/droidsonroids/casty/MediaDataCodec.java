@@ -0,0 +1,487 @@
+package pl.droidsonroids.casty;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact, versioned binary format for {@link MediaData}, e.g. to persist up-next lists.
+ * A stream starts with a 3-byte header (magic and format version) followed by one record per item.
+ * Numbers are variable-length encoded and strings repeated within a stream, such as content types
+ * or image URLs, are written once and then referenced by index. Lists of any size are read and
+ * written incrementally with {@link Writer} and {@link Reader}.
+ */
+public final class MediaDataCodec {
+
+    /**
+     * Current format version. Readers reject streams written with a newer version.
+     */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC_0 = 0xCA;
+    private static final int MAGIC_1 = 0x57;
+    private static final int STRING_TABLE_CAPACITY = 4096;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_AUTO_PLAY = 1;
+    private static final int FLAG_URL = 1 << 1;
+    private static final int FLAG_CONTENT_TYPE = 1 << 2;
+    private static final int FLAG_TITLE = 1 << 3;
+    private static final int FLAG_SUBTITLE = 1 << 4;
+
+    private MediaDataCodec() {
+    }
+
+    /**
+     * Encodes a single item as a complete stream.
+     *
+     * @param mediaData item to encode
+     * @return encoded bytes
+     */
+    public static byte[] encode(@NonNull MediaData mediaData) {
+
+        if(mediaData == null) {
+            throw new NullPointerException("MediaData cannot be null");
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(128);
+
+        try {
+            Writer writer = new Writer(outputStream);
+            writer.write(mediaData);
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Decodes a single item encoded with {@link #encode(MediaData)}.
+     *
+     * @param bytes encoded bytes
+     * @return the decoded item
+     * @throws IOException if the bytes are malformed or of an unsupported version
+     */
+    public static MediaData decode(@NonNull byte[] bytes) throws IOException {
+
+        if(bytes == null) {
+            throw new NullPointerException("Bytes cannot be null");
+        }
+
+        MediaData mediaData = new Reader(new ByteArrayInputStream(bytes)).read();
+
+        if(mediaData == null) {
+            throw new EOFException("No MediaData encoded");
+        }
+
+        return mediaData;
+    }
+
+    /**
+     * Writes a list as one stream. The stream is flushed but not closed.
+     *
+     * @param outputStream destination
+     * @param mediaDataList items to write
+     * @throws IOException if writing fails
+     */
+    public static void writeList(@NonNull OutputStream outputStream, @NonNull List<MediaData> mediaDataList) throws IOException {
+
+        if(mediaDataList == null) {
+            throw new NullPointerException("MediaData list cannot be null");
+        }
+
+        Writer writer = new Writer(outputStream);
+
+        for (MediaData mediaData : mediaDataList) {
+            writer.write(mediaData);
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Reads all items of a stream. The stream is not closed.
+     *
+     * @param inputStream source
+     * @return the decoded items
+     * @throws IOException if reading fails, the stream is malformed or of an unsupported version
+     */
+    public static List<MediaData> readList(@NonNull InputStream inputStream) throws IOException {
+
+        Reader reader = new Reader(inputStream);
+        ArrayList<MediaData> mediaDataList = new ArrayList<>();
+        MediaData mediaData;
+
+        while ((mediaData = reader.read()) != null) {
+            mediaDataList.add(mediaData);
+        }
+
+        return mediaDataList;
+    }
+
+    /**
+     * Writes items to a stream one at a time. Buffered, so call {@link #flush()} or {@link #close()}
+     * when done. Not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+
+        private final OutputStream outputStream;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final HashMap<String, Integer> stringTable = new HashMap<>();
+        private int position;
+
+        /**
+         * Creates a writer and writes the stream header.
+         *
+         * @param outputStream destination
+         * @throws IOException if writing the header fails
+         */
+        public Writer(@NonNull OutputStream outputStream) throws IOException {
+
+            if(outputStream == null) {
+                throw new NullPointerException("OutputStream cannot be null");
+            }
+
+            this.outputStream = outputStream;
+            writeByte(MAGIC_0);
+            writeByte(MAGIC_1);
+            writeByte(VERSION);
+        }
+
+        public void write(@NonNull MediaData mediaData) throws IOException {
+
+            if(mediaData == null) {
+                throw new NullPointerException("MediaData cannot be null");
+            }
+
+            int flags = 0;
+
+            if(mediaData.isAutoPlay()) flags |= FLAG_AUTO_PLAY;
+            if(mediaData.getUrl() != null) flags |= FLAG_URL;
+            if(mediaData.getContentType() != null) flags |= FLAG_CONTENT_TYPE;
+            if(mediaData.getTitle() != null) flags |= FLAG_TITLE;
+            if(mediaData.getSubtitle() != null) flags |= FLAG_SUBTITLE;
+
+            writeVarint(flags);
+            writeString(mediaData.getUrl());
+            writeVarint(zigZag(mediaData.getStreamType()));
+            writeString(mediaData.getContentType());
+            writeVarint(zigZag(mediaData.getStreamDuration()));
+            writeVarint(zigZag(mediaData.getMediaType()));
+            writeString(mediaData.getTitle());
+            writeString(mediaData.getSubtitle());
+            writeVarint(zigZag(mediaData.getPosition()));
+
+            String[] imageUrls = mediaData.getImageUrlArray();
+            writeVarint(imageUrls.length);
+
+            for (String imageUrl : imageUrls) {
+                writeString(imageUrl);
+            }
+        }
+
+        public void flush() throws IOException {
+            outputStream.write(buffer, 0, position);
+            position = 0;
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            outputStream.close();
+        }
+
+        private void writeString(@Nullable String string) throws IOException {
+
+            if(string == null) {
+                return;
+            }
+
+            Integer index = stringTable.get(string);
+
+            if(index != null) {
+                writeVarint(((long) index << 1) | 1);
+                return;
+            }
+
+            if(stringTable.size() < STRING_TABLE_CAPACITY) {
+                stringTable.put(string, stringTable.size());
+            }
+
+            byte[] bytes = string.getBytes(UTF_8);
+            writeVarint((long) bytes.length << 1);
+
+            if(bytes.length > buffer.length - position) {
+                outputStream.write(buffer, 0, position);
+                position = 0;
+            }
+
+            if(bytes.length > buffer.length) {
+                outputStream.write(bytes);
+            }else {
+                System.arraycopy(bytes, 0, buffer, position, bytes.length);
+                position += bytes.length;
+            }
+        }
+
+        private void writeVarint(long value) throws IOException {
+
+            if(buffer.length - position < 10) {
+                outputStream.write(buffer, 0, position);
+                position = 0;
+            }
+
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeByte(int value) throws IOException {
+
+            if(position == buffer.length) {
+                outputStream.write(buffer, 0, position);
+                position = 0;
+            }
+
+            buffer[position++] = (byte) value;
+        }
+    }
+
+    /**
+     * Reads items from a stream one at a time. Not thread-safe.
+     */
+    public static final class Reader implements Closeable {
+
+        private final InputStream inputStream;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final ArrayList<String> stringTable = new ArrayList<>();
+        private int position;
+        private int limit;
+
+        /**
+         * Creates a reader and validates the stream header.
+         *
+         * @param inputStream source
+         * @throws IOException if the header is missing, malformed or of a newer version
+         */
+        public Reader(@NonNull InputStream inputStream) throws IOException {
+
+            if(inputStream == null) {
+                throw new NullPointerException("InputStream cannot be null");
+            }
+
+            this.inputStream = inputStream;
+
+            if(readByte() != MAGIC_0 || readByte() != MAGIC_1) {
+                throw new IOException("Not a MediaData stream");
+            }
+
+            int version = readByte();
+
+            if(version > VERSION) {
+                throw new IOException("Unsupported MediaData stream version " + version);
+            }
+        }
+
+        /**
+         * Reads the next item.
+         *
+         * @return the item or null at the end of the stream
+         * @throws IOException if reading fails or the stream ends in the middle of an item
+         */
+        @Nullable
+        @SuppressWarnings("WrongConstant")
+        public MediaData read() throws IOException {
+
+            if(position == limit && !fill()) {
+                return null;
+            }
+
+            int flags = (int) readVarint();
+            MediaData.Builder builder = new MediaData.Builder((flags & FLAG_URL) != 0 ? readString() : null)
+                    .setStreamType(unZigZag(readVarint()))
+                    .setContentType((flags & FLAG_CONTENT_TYPE) != 0 ? readString() : null)
+                    .setStreamDuration(unZigZagLong(readVarint()))
+                    .setMediaType(unZigZag(readVarint()))
+                    .setTitle((flags & FLAG_TITLE) != 0 ? readString() : null)
+                    .setSubtitle((flags & FLAG_SUBTITLE) != 0 ? readString() : null)
+                    .setPosition(unZigZagLong(readVarint()))
+                    .setAutoPlay((flags & FLAG_AUTO_PLAY) != 0);
+
+            long imageUrlCount = readVarint();
+
+            if(imageUrlCount < 0 || imageUrlCount > Integer.MAX_VALUE) {
+                throw new IOException("Invalid image URL count " + imageUrlCount);
+            }
+
+            for (int i = 0; i < imageUrlCount; i++) {
+                builder.addPhotoUrl(readString());
+            }
+
+            return builder.build();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+
+        private String readString() throws IOException {
+
+            long header = readVarint();
+
+            if((header & 1) != 0) {
+
+                long index = header >>> 1;
+
+                if(index >= stringTable.size()) {
+                    throw new IOException("Invalid string reference " + index);
+                }
+
+                return stringTable.get((int) index);
+            }
+
+            if((header >>> 1) > Integer.MAX_VALUE) {
+                throw new IOException("Invalid string length " + (header >>> 1));
+            }
+
+            int length = (int) (header >>> 1);
+            String string;
+
+            if(length <= buffer.length) {
+                ensureAvailable(length);
+                string = new String(buffer, position, length, UTF_8);
+                position += length;
+            }else {
+                string = readLongString(length);
+            }
+
+            if(stringTable.size() < STRING_TABLE_CAPACITY) {
+                stringTable.add(string);
+            }
+
+            return string;
+        }
+
+        /**
+         * Reads a string that does not fit the buffer. The array grows with the bytes actually
+         * read, so a corrupt length fails with {@link EOFException} instead of a huge allocation.
+         */
+        private String readLongString(int length) throws IOException {
+
+            byte[] bytes = new byte[Math.min(length, buffer.length * 8)];
+            int copied = limit - position;
+            System.arraycopy(buffer, position, bytes, 0, copied);
+            position = limit;
+
+            while (copied < length) {
+
+                if(copied == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+                }
+
+                int read = inputStream.read(bytes, copied, bytes.length - copied);
+
+                if(read < 0) {
+                    throw new EOFException();
+                }
+
+                copied += read;
+            }
+
+            return new String(bytes, UTF_8);
+        }
+
+        private long readVarint() throws IOException {
+
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed varint");
+        }
+
+        private int readByte() throws IOException {
+
+            if(position == limit && !fill()) {
+                throw new EOFException();
+            }
+
+            return buffer[position++] & 0xFF;
+        }
+
+        private void ensureAvailable(int count) throws IOException {
+
+            if(limit - position >= count) {
+                return;
+            }
+
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+
+            while (limit < count) {
+
+                int read = inputStream.read(buffer, limit, buffer.length - limit);
+
+                if(read < 0) {
+                    throw new EOFException();
+                }
+
+                limit += read;
+            }
+        }
+
+        private boolean fill() throws IOException {
+
+            int read = inputStream.read(buffer, 0, buffer.length);
+
+            if(read <= 0) {
+                return false;
+            }
+
+            position = 0;
+            limit = read;
+            return true;
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZagLong(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int unZigZag(long value) {
+        return (int) unZigZagLong(value);
+    }
+}
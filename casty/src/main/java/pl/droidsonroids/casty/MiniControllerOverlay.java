@@ -0,0 +1,39 @@
+package pl.droidsonroids.casty;
+
+import android.app.Activity;
+import android.view.ViewGroup;
+
+/**
+ * Attaches the mini controller as an overlay on top of an Activity's content. The existing view
+ * hierarchy is left untouched: the controller is inflated as an extra child of the content frame,
+ * at the bottom, and only once a cast session exists.
+ * <p>
+ * Every Activity inflates its own controller, including each instance recreated after a
+ * configuration change: the views and the MiniControllerFragment belong to one window and one
+ * FragmentManager, so they are not cached or moved between Activities. What is saved is the
+ * re-parenting and re-layout of the content, and the inflation on screens that never cast.
+ */
+final class MiniControllerOverlay {
+
+    private MiniControllerOverlay() {
+    }
+
+    /**
+     * Inflates the mini controller into the Activity unless it is already there.
+     * Must be called from the main thread, after the Activity's content view is set.
+     *
+     * @param activity Activity to attach the mini controller to
+     */
+    static void attach(Activity activity) {
+
+        if(activity.findViewById(R.id.casty_mini_controller) != null) {
+            return;
+        }
+
+        ViewGroup contentView = (ViewGroup) activity.findViewById(android.R.id.content);
+
+        if(contentView != null) {
+            activity.getLayoutInflater().inflate(R.layout.mini_controller, contentView, true);
+        }
+    }
+}
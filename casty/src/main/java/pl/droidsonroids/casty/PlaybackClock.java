@@ -0,0 +1,54 @@
+package pl.droidsonroids.casty;
+
+import android.os.SystemClock;
+
+/**
+ * Local playback clock. It is anchored by status and progress updates from the receiver and
+ * extrapolates the position in between, so UI can render smooth positions every frame
+ * without additional receiver traffic.
+ */
+final class PlaybackClock {
+
+    private long anchorPosition;
+    private long anchorTime;
+    private long duration;
+    private double rate;
+
+    /**
+     * Re-anchors the clock with a position reported by the receiver.
+     *
+     * @param position reported stream position in milliseconds
+     * @param duration stream duration in milliseconds, 0 or less if unknown
+     * @param rate playback rate, 0 when the player is not advancing
+     */
+    synchronized void update(long position, long duration, double rate) {
+        this.anchorPosition = position;
+        this.anchorTime = SystemClock.elapsedRealtime();
+        this.duration = duration;
+        this.rate = rate;
+    }
+
+    synchronized void reset() {
+        update(0, 0, 0);
+    }
+
+    /**
+     * Gets the extrapolated position, clamped to the stream duration when it is known.
+     *
+     * @return the estimated current position in milliseconds
+     */
+    synchronized long getPosition() {
+
+        long position = anchorPosition;
+
+        if(rate != 0) {
+            position += (long) ((SystemClock.elapsedRealtime() - anchorTime) * rate);
+        }
+
+        if(duration > 0 && position > duration) {
+            return duration;
+        }
+
+        return position < 0 ? 0 : position;
+    }
+}
@@ -0,0 +1,46 @@
+package pl.droidsonroids.casty;
+
+/**
+ * Immutable progress tick published by {@link Casty#observeProgress()}.
+ */
+public final class PlaybackProgress {
+
+    private final long position;
+    private final long duration;
+
+    PlaybackProgress(long position, long duration) {
+        this.position = position;
+        this.duration = duration;
+    }
+
+    /**
+     * @return stream position in milliseconds
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return stream duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) return true;
+        if (!(o instanceof PlaybackProgress)) return false;
+
+        PlaybackProgress that = (PlaybackProgress) o;
+
+        return position == that.position
+                && duration == that.duration;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (position ^ (position >>> 32)) + (int) (duration ^ (duration >>> 32));
+    }
+}
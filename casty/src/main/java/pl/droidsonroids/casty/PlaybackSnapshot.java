@@ -0,0 +1,141 @@
+package pl.droidsonroids.casty;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.media.RemoteMediaClient;
+
+/**
+ * Immutable view of the receiver's playback state. A new snapshot is built once per status update
+ * and can be read from any thread without locking. {@link #getChangedFields()} tells which fields
+ * differ from the previous snapshot.
+ */
+public final class PlaybackSnapshot {
+
+    public static final int FIELD_PLAYER_STATE = 1;
+    public static final int FIELD_IDLE_REASON = 1 << 1;
+    public static final int FIELD_LIVE_STREAM = 1 << 2;
+    public static final int FIELD_DURATION = 1 << 3;
+    public static final int FIELD_CONTENT = 1 << 4;
+    public static final int FIELD_POSITION = 1 << 5;
+
+    static final PlaybackSnapshot EMPTY = new PlaybackSnapshot(MediaStatus.PLAYER_STATE_UNKNOWN,
+            MediaStatus.IDLE_REASON_NONE, false, MediaData.UNKNOWN_DURATION, 0, null, 0);
+
+    private final int playerState;
+    private final int idleReason;
+    private final boolean liveStream;
+    private final long streamDuration;
+    private final long streamPosition;
+    private final String contentId;
+    private final int changedFields;
+
+    private PlaybackSnapshot(int playerState, int idleReason, boolean liveStream, long streamDuration,
+                             long streamPosition, String contentId, int changedFields) {
+        this.playerState = playerState;
+        this.idleReason = idleReason;
+        this.liveStream = liveStream;
+        this.streamDuration = streamDuration;
+        this.streamPosition = streamPosition;
+        this.contentId = contentId;
+        this.changedFields = changedFields;
+    }
+
+    /**
+     * Builds the snapshot following {@code previous} from the client's current state.
+     *
+     * @param remoteMediaClient client to read from
+     * @param previous the currently published snapshot
+     * @param positionJumped true if the reported position is discontinuous, e.g. after a seek
+     * @return the new snapshot, with changed fields computed against {@code previous}
+     */
+    static PlaybackSnapshot create(RemoteMediaClient remoteMediaClient, PlaybackSnapshot previous, boolean positionJumped) {
+
+        MediaInfo mediaInfo = remoteMediaClient.getMediaInfo();
+        int playerState = remoteMediaClient.getPlayerState();
+        int idleReason = remoteMediaClient.getIdleReason();
+        boolean liveStream = remoteMediaClient.isLiveStream();
+        long streamDuration = remoteMediaClient.getStreamDuration();
+        String contentId = mediaInfo != null ? mediaInfo.getContentId() : null;
+
+        int changedFields = positionJumped ? FIELD_POSITION : 0;
+
+        if(playerState != previous.playerState) changedFields |= FIELD_PLAYER_STATE;
+        if(idleReason != previous.idleReason) changedFields |= FIELD_IDLE_REASON;
+        if(liveStream != previous.liveStream) changedFields |= FIELD_LIVE_STREAM;
+        if(streamDuration != previous.streamDuration) changedFields |= FIELD_DURATION;
+        if(contentId == null ? previous.contentId != null : !contentId.equals(previous.contentId)) changedFields |= FIELD_CONTENT;
+
+        return new PlaybackSnapshot(playerState, idleReason, liveStream, streamDuration,
+                remoteMediaClient.getApproximateStreamPosition(), contentId, changedFields);
+    }
+
+    /**
+     * Gets the fields that differ from the previous snapshot.
+     *
+     * @return bit mask of {@code FIELD_*} constants
+     */
+    public int getChangedFields() {
+        return changedFields;
+    }
+
+    /**
+     * Checks if any of the given fields changed since the previous snapshot.
+     *
+     * @param fields bit mask of {@code FIELD_*} constants
+     * @return true if at least one of the fields changed
+     */
+    public boolean hasChanged(int fields) {
+        return (changedFields & fields) != 0;
+    }
+
+    public int getPlayerState() {
+        return playerState;
+    }
+
+    public int getIdleReason() {
+        return idleReason;
+    }
+
+    public long getStreamDuration() {
+        return streamDuration;
+    }
+
+    /**
+     * Gets the position reported when this snapshot was built. Use
+     * {@link Casty#getApproximatePosition()} for the current position.
+     *
+     * @return stream position in milliseconds
+     */
+    public long getStreamPosition() {
+        return streamPosition;
+    }
+
+    /**
+     * Gets the content ID of the loaded media, which is the url passed to {@link MediaData.Builder}.
+     *
+     * @return the content ID or null if nothing is loaded
+     */
+    public String getContentId() {
+        return contentId;
+    }
+
+    public boolean isPlaying() {
+        return playerState == MediaStatus.PLAYER_STATE_PLAYING;
+    }
+
+    public boolean isBuffering() {
+        return playerState == MediaStatus.PLAYER_STATE_BUFFERING;
+    }
+
+    public boolean isPaused() {
+        return playerState == MediaStatus.PLAYER_STATE_PAUSED;
+    }
+
+    public boolean isIdle() {
+        return playerState == MediaStatus.PLAYER_STATE_IDLE;
+    }
+
+    public boolean isLiveStream() {
+        return liveStream;
+    }
+}
@@ -0,0 +1,252 @@
+package pl.droidsonroids.casty;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Computes the queue operations turning one ordered list of unique keys into another. Keys kept in
+ * place form the longest increasing subsequence of their old positions, so the number of moved
+ * keys is minimal. Removals are batched into one operation and moved or inserted keys into one
+ * operation per contiguous run. A pinned key, e.g. the one playing, is never removed or moved.
+ * Runs in O(n log n).
+ */
+final class QueueDiff {
+
+    static final int OPERATION_REMOVE = 0;
+    static final int OPERATION_INSERT = 1;
+    static final int OPERATION_MOVE = 2;
+
+    /**
+     * Marker for "before the end of the list".
+     */
+    static final int NO_KEY = -1;
+
+    /**
+     * One batched operation. Insert and move operations place their keys, in order, before
+     * {@link #beforeKey} or at the end if it is {@link #NO_KEY}. The anchor is always a key which
+     * existed before, so it can be resolved before any operation is applied.
+     */
+    static final class Operation {
+
+        final int type;
+        final int[] keys;
+        final int beforeKey;
+        /**
+         * Position of the first key in the new list, -1 for removals.
+         */
+        final int position;
+
+        Operation(int type, int[] keys, int beforeKey, int position) {
+            this.type = type;
+            this.keys = keys;
+            this.beforeKey = beforeKey;
+            this.position = position;
+        }
+    }
+
+    private QueueDiff() {
+    }
+
+    /**
+     * Assigns keys to a new list by matching its entries with the old ones using
+     * {@link Object#equals(Object)}. Repeated entries are matched in order, so every occurrence keeps
+     * a key of its own. Unmatched entries get fresh keys counting up from {@code nextKey}.
+     *
+     * @param oldEntries current entries
+     * @param oldKeys keys of the current entries
+     * @param newEntries requested entries
+     * @param nextKey first fresh key, greater than any key in use
+     * @return unique keys of the requested entries
+     */
+    static int[] matchKeys(Object[] oldEntries, int[] oldKeys, List<?> newEntries, int nextKey) {
+
+        HashMap<Object, ArrayDeque<Integer>> keysByEntry = new HashMap<>(oldEntries.length * 2);
+
+        for (int i = 0; i < oldEntries.length; i++) {
+
+            ArrayDeque<Integer> keys = keysByEntry.get(oldEntries[i]);
+
+            if(keys == null) {
+                keys = new ArrayDeque<>(1);
+                keysByEntry.put(oldEntries[i], keys);
+            }
+
+            keys.add(oldKeys[i]);
+        }
+
+        int[] newKeys = new int[newEntries.size()];
+
+        for (int i = 0; i < newKeys.length; i++) {
+
+            ArrayDeque<Integer> keys = keysByEntry.get(newEntries.get(i));
+            Integer key = keys != null ? keys.poll() : null;
+            newKeys[i] = key != null ? key : nextKey++;
+        }
+
+        return newKeys;
+    }
+
+    /**
+     * Computes the operations, to be applied in the returned order. Runs are applied from left to
+     * right, each placed right before the next key which stays in place.
+     *
+     * @param oldKeys current order, keys are unique
+     * @param newKeys requested order, keys are unique
+     * @param pinnedKey key which must stay in place, {@link #NO_KEY} for none. If present in both
+     *                  lists, keys around it are moved instead; its relative order is kept.
+     * @return operations, empty if the lists are equal
+     */
+    static List<Operation> compute(int[] oldKeys, int[] newKeys, int pinnedKey) {
+
+        ArrayList<Operation> operations = new ArrayList<>();
+        KeyIndex oldIndex = new KeyIndex(oldKeys);
+        KeyIndex newIndex = new KeyIndex(newKeys);
+        int removedCount = 0;
+
+        for (int oldKey : oldKeys) {
+
+            if(newIndex.get(oldKey) < 0 && oldKey != pinnedKey) {
+                removedCount++;
+            }
+        }
+
+        if(removedCount > 0) {
+
+            int[] removed = new int[removedCount];
+            int i = 0;
+
+            for (int oldKey : oldKeys) {
+
+                if(newIndex.get(oldKey) < 0 && oldKey != pinnedKey) {
+                    removed[i++] = oldKey;
+                }
+            }
+
+            operations.add(new Operation(OPERATION_REMOVE, removed, NO_KEY, -1));
+        }
+
+        int[] oldPositions = new int[newKeys.length];
+        int pinnedPosition = -1;
+
+        for (int i = 0; i < newKeys.length; i++) {
+            oldPositions[i] = oldIndex.get(newKeys[i]);
+
+            if(newKeys[i] == pinnedKey && oldPositions[i] >= 0) {
+                pinnedPosition = i;
+            }
+        }
+
+        boolean[] stable = new boolean[newKeys.length];
+
+        if(pinnedPosition >= 0) {
+            int pinnedOldPosition = oldPositions[pinnedPosition];
+            markLongestIncreasing(oldPositions, 0, pinnedPosition, -1, pinnedOldPosition, stable);
+            stable[pinnedPosition] = true;
+            markLongestIncreasing(oldPositions, pinnedPosition + 1, newKeys.length, pinnedOldPosition, Integer.MAX_VALUE, stable);
+        }else {
+            markLongestIncreasing(oldPositions, 0, newKeys.length, -1, Integer.MAX_VALUE, stable);
+        }
+
+        int beforeKey = NO_KEY;
+        int[] nextStable = new int[newKeys.length];
+
+        for (int i = newKeys.length - 1; i >= 0; i--) {
+            nextStable[i] = beforeKey;
+
+            if(stable[i]) {
+                beforeKey = newKeys[i];
+            }
+        }
+
+        int i = 0;
+
+        while (i < newKeys.length) {
+
+            if(stable[i]) {
+                i++;
+                continue;
+            }
+
+            boolean inserted = oldPositions[i] < 0;
+            int runStart = i;
+
+            while (i < newKeys.length && !stable[i] && (oldPositions[i] < 0) == inserted) {
+                i++;
+            }
+
+            int[] keys = new int[i - runStart];
+            System.arraycopy(newKeys, runStart, keys, 0, keys.length);
+            operations.add(new Operation(inserted ? OPERATION_INSERT : OPERATION_MOVE, keys, nextStable[runStart], runStart));
+        }
+
+        return operations;
+    }
+
+    /**
+     * Marks the longest strictly increasing subsequence of {@code values[from, to)} whose values lie
+     * in {@code (min, max)}. Negative values are absent and skipped.
+     */
+    private static void markLongestIncreasing(int[] values, int from, int to, int min, int max, boolean[] marked) {
+
+        int[] tails = new int[to - from];
+        int[] previous = new int[to - from];
+        int length = 0;
+
+        for (int i = from; i < to; i++) {
+
+            int value = values[i];
+
+            if(value < 0 || value <= min || value >= max) {
+                continue;
+            }
+
+            int low = 0;
+            int high = length;
+
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+
+                if(values[tails[middle]] < value) {
+                    low = middle + 1;
+                }else {
+                    high = middle;
+                }
+            }
+
+            previous[i - from] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+
+            if(low == length) {
+                length++;
+            }
+        }
+
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i - from]) {
+            marked[i] = true;
+        }
+    }
+
+    /**
+     * Maps keys to their positions.
+     */
+    private static final class KeyIndex {
+
+        private final HashMap<Integer, Integer> positions;
+
+        KeyIndex(int[] keys) {
+            positions = new HashMap<>(keys.length * 2);
+
+            for (int i = 0; i < keys.length; i++) {
+                positions.put(keys[i], i);
+            }
+        }
+
+        int get(int key) {
+
+            Integer position = positions.get(key);
+            return position != null ? position : -1;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package pl.droidsonroids.casty;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers playback positions keyed by media URL, so {@link Casty#play(MediaData)} can resume where
+ * the user left off. Lookups are O(1) against an in-memory open-addressing index keyed by a 64-bit
+ * hash of the URL and bounded to {@link #MAX_ENTRIES} titles. When it is full, a title that was
+ * neither played nor looked up recently makes room, chosen with the clock approximation of LRU.
+ * <p>
+ * Updates are write-behind: they change the index right away, are coalesced per title and appended
+ * in batches every {@link #FLUSH_DELAY} on a background thread to a memory-mapped journal, so
+ * progress ticks never wait for the disk. The journal is compacted into a snapshot of the index
+ * when its mapped region is full. Positions near the start or the end of a stream are not kept.
+ */
+public final class ResumeStore {
+
+    static final int MAX_ENTRIES = 300000;
+    static final long FLUSH_DELAY = 5000;
+    static final long MIN_POSITION = 5000;
+    static final long FINISHED_MARGIN = 15000;
+
+    private static final String TAG = "ResumeStore";
+    private static final String FILE_NAME = "casty_resume.log";
+    private static final int MAGIC = 0xCA57AE50;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 12;
+    private static final int REMOVED = -1;
+    private static final int JOURNAL_GROWTH = 256 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static ResumeStore instance;
+
+    private final File file;
+    private final Handler handler;
+
+    private Index index = new Index(INITIAL_CAPACITY);
+    private final HashMap<Long, Integer> dirty = new HashMap<>();
+    private boolean flushScheduled;
+    private boolean loaded;
+    /**
+     * Incremented by {@link #clear()}. The journal replay is dropped unless it is still 0 when the
+     * replay is applied, as the journal then holds positions cleared since the store was opened.
+     */
+    private int generation;
+
+    private FileChannel channel;
+    private MappedByteBuffer journal;
+
+    /**
+     * Gets the process-wide store. The journal is loaded in the background; until then lookups miss.
+     *
+     * @param context any context, only the application context is retained
+     * @return the store
+     */
+    public static synchronized ResumeStore getInstance(@NonNull Context context) {
+
+        if(context == null) {
+            throw new NullPointerException("Context cannot be null");
+        }
+
+        if(instance == null) {
+            instance = new ResumeStore(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private ResumeStore(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME), createHandler());
+    }
+
+    /**
+     * Creates a store backed by a journal file, doing its disk work on a handler's thread.
+     *
+     * @param file journal file
+     * @param handler handler of the thread loading and writing the journal
+     */
+    ResumeStore(File file, Handler handler) {
+        this.file = file;
+        this.handler = handler;
+        this.handler.post(loadRunnable);
+    }
+
+    private static Handler createHandler() {
+
+        HandlerThread thread = new HandlerThread("casty-resume-store", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+
+    /**
+     * Gets the stored position of a title.
+     *
+     * @param url media URL
+     * @return position in milliseconds, 0 if none is stored
+     */
+    public synchronized long getPosition(@NonNull String url) {
+
+        if(url == null) {
+            throw new NullPointerException("Url cannot be null");
+        }
+
+        int slot = index.find(keyOf(url));
+
+        if(slot < 0) {
+            return 0;
+        }
+
+        index.referenced[slot] = true;
+        return index.positions[slot];
+    }
+
+    /**
+     * Forgets the position of a title, e.g. to play it from the start.
+     *
+     * @param url media URL
+     */
+    public void remove(@NonNull String url) {
+
+        if(url == null) {
+            throw new NullPointerException("Url cannot be null");
+        }
+
+        update(keyOf(url), REMOVED);
+    }
+
+    /**
+     * Forgets all positions, including ones the journal is still being loaded with.
+     */
+    public void clear() {
+
+        synchronized (this) {
+            index = new Index(INITIAL_CAPACITY);
+            generation++;
+            dirty.clear();
+        }
+
+        handler.post(compactRunnable);
+    }
+
+    /**
+     * Records the progress of a title. Positions near the start are ignored and positions near
+     * the end remove the title, so finished titles start over.
+     *
+     * @param url media URL
+     * @param position position in milliseconds
+     * @param duration stream duration in milliseconds, 0 or less if unknown
+     */
+    void record(String url, long position, long duration) {
+
+        long key = keyOf(url);
+
+        if(duration > 0 && position > duration - FINISHED_MARGIN) {
+            update(key, REMOVED);
+        }else if(position >= MIN_POSITION) {
+            update(key, (int) Math.min(position, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Applies an update to the index and queues it for the journal. Until the journal is loaded,
+     * removals of titles not in the index are queued as well, so the replay does not restore them.
+     */
+    private synchronized void update(long key, int position) {
+
+        int slot = index.find(key);
+
+        if(position == REMOVED) {
+
+            if(slot >= 0) {
+                index.delete(slot);
+            }else if(loaded) {
+                return;
+            }
+        }else if(slot >= 0) {
+            index.referenced[slot] = true;
+
+            if(index.positions[slot] == position) {
+                return;
+            }
+
+            index.positions[slot] = position;
+        }else {
+            long evicted = index.insert(key, position);
+
+            if(evicted != 0) {
+                dirty.put(evicted, REMOVED);
+            }
+        }
+
+        dirty.put(key, position);
+
+        if(!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, FLUSH_DELAY);
+        }
+    }
+
+    /**
+     * Hashes a URL with 64-bit FNV-1a. 0 marks empty slots and is never returned.
+     */
+    private static long keyOf(String url) {
+
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash != 0 ? hash : 1;
+    }
+
+    private final Runnable loadRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            try {
+                load();
+            } catch (IOException e) {
+                Log.w(TAG, "Resume positions are not persisted", e);
+                journal = null;
+            }
+        }
+    };
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            long[] flushedKeys;
+            int[] flushedPositions;
+
+            synchronized (ResumeStore.this) {
+                flushScheduled = false;
+                flushedKeys = new long[dirty.size()];
+                flushedPositions = new int[dirty.size()];
+
+                int i = 0;
+
+                for (Map.Entry<Long, Integer> entry : dirty.entrySet()) {
+                    flushedKeys[i] = entry.getKey();
+                    flushedPositions[i++] = entry.getValue();
+                }
+
+                dirty.clear();
+            }
+
+            if(journal == null) {
+                return;
+            }
+
+            try {
+
+                if(journal.remaining() < flushedKeys.length * RECORD_SIZE) {
+                    compact();
+                    return;
+                }
+
+                for (int i = 0; i < flushedKeys.length; i++) {
+                    journal.putLong(flushedKeys[i]);
+                    journal.putInt(flushedPositions[i]);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Resume positions are not persisted", e);
+                journal = null;
+            }
+        }
+    };
+
+    private final Runnable compactRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            if(journal == null) {
+                return;
+            }
+
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.w(TAG, "Resume positions are not persisted", e);
+                journal = null;
+            }
+        }
+    };
+
+    /**
+     * Replays the journal into a private index without holding the lock, then swaps it in. Updates
+     * made meanwhile are applied on top, so they win; any {@link #clear()} since the store was opened
+     * drops the replay. Runs on the background thread.
+     */
+    private void load() throws IOException {
+
+        Index replayed = null;
+        ArrayList<Long> evicted = new ArrayList<>();
+
+        if(file.exists() && file.length() >= HEADER_SIZE) {
+            map(file.length());
+
+            if(journal.getInt(0) == MAGIC && journal.getInt(4) <= VERSION) {
+                replayed = replay(evicted);
+            }
+        }
+
+        synchronized (this) {
+            loaded = true;
+
+            if(replayed != null && generation == 0) {
+
+                for (Map.Entry<Long, Integer> entry : dirty.entrySet()) {
+                    long key = entry.getKey();
+                    int slot = replayed.find(key);
+
+                    if(entry.getValue() == REMOVED) {
+
+                        if(slot >= 0) {
+                            replayed.delete(slot);
+                        }
+                    }else if(slot >= 0) {
+                        replayed.positions[slot] = entry.getValue();
+                        replayed.referenced[slot] = true;
+                    }else {
+
+                        long evictedKey = replayed.insert(key, entry.getValue());
+
+                        if(evictedKey != 0) {
+                            evicted.add(evictedKey);
+                        }
+                    }
+                }
+
+                for (Long key : evicted) {
+
+                    if(replayed.find(key) < 0) {
+                        dirty.put(key, REMOVED);
+                    }
+                }
+
+                index = replayed;
+            }
+        }
+
+        if(replayed == null) {
+            compact();
+        }
+    }
+
+    /**
+     * Reads the records of the mapped journal into a new index.
+     *
+     * @param evicted receives keys evicted to stay within {@link #MAX_ENTRIES}
+     */
+    private Index replay(ArrayList<Long> evicted) {
+
+        Index replayed = new Index(INITIAL_CAPACITY);
+        journal.position(HEADER_SIZE);
+
+        while (journal.remaining() >= RECORD_SIZE) {
+
+            long key = journal.getLong(journal.position());
+
+            if(key == 0) {
+                break;
+            }
+
+            journal.position(journal.position() + 8);
+            int position = journal.getInt();
+            int slot = replayed.find(key);
+
+            if(position == REMOVED) {
+
+                if(slot >= 0) {
+                    replayed.delete(slot);
+                }
+            }else if(slot >= 0) {
+                replayed.positions[slot] = position;
+            }else {
+
+                long evictedKey = replayed.insert(key, position);
+
+                if(evictedKey != 0) {
+                    evicted.add(evictedKey);
+                }
+            }
+        }
+
+        for (int i = 0; i < replayed.referenced.length; i++) {
+            replayed.referenced[i] = false;
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Rewrites the journal as a snapshot of the index followed by room for new records, then
+     * replaces the old journal atomically. Runs on the background thread.
+     */
+    private void compact() throws IOException {
+
+        long[] snapshotKeys;
+        int[] snapshotPositions;
+        int snapshotSize;
+
+        synchronized (this) {
+            snapshotKeys = index.keys.clone();
+            snapshotPositions = index.positions.clone();
+            snapshotSize = index.size;
+            dirty.clear();
+        }
+
+        File compacted = new File(file.getPath() + ".tmp");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(compacted, "rw");
+
+        try {
+            randomAccessFile.setLength(0);
+
+            FileChannel compactedChannel = randomAccessFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            buffer.putInt(MAGIC).putInt(VERSION);
+
+            for (int i = 0; i < snapshotKeys.length; i++) {
+
+                if(snapshotKeys[i] == 0) {
+                    continue;
+                }
+
+                if(buffer.remaining() < RECORD_SIZE) {
+                    buffer.flip();
+                    compactedChannel.write(buffer);
+                    buffer.clear();
+                }
+
+                buffer.putLong(snapshotKeys[i]).putInt(snapshotPositions[i]);
+            }
+
+            buffer.flip();
+            compactedChannel.write(buffer);
+            compactedChannel.force(false);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if(!compacted.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+
+        map(HEADER_SIZE + (long) snapshotSize * RECORD_SIZE + JOURNAL_GROWTH);
+        journal.position(HEADER_SIZE + snapshotSize * RECORD_SIZE);
+    }
+
+    private void map(long length) throws IOException {
+
+        if(channel != null) {
+            channel.close();
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    /**
+     * Open-addressing hash table of positions by key with linear probing and a referenced bit per
+     * slot for eviction. Not thread-safe.
+     */
+    private static final class Index {
+
+        long[] keys;
+        int[] positions;
+        boolean[] referenced;
+        int size;
+        private int clockHand;
+
+        Index(int capacity) {
+            keys = new long[capacity];
+            positions = new int[capacity];
+            referenced = new boolean[capacity];
+        }
+
+        private int slotOf(long key) {
+            return (int) (key ^ (key >>> 32)) & (keys.length - 1);
+        }
+
+        int find(long key) {
+
+            int mask = keys.length - 1;
+
+            for (int slot = slotOf(key); keys[slot] != 0; slot = (slot + 1) & mask) {
+
+                if(keys[slot] == key) {
+                    return slot;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Inserts a key that is not in the index yet.
+         *
+         * @return key evicted to make room, 0 if none
+         */
+        long insert(long key, int position) {
+
+            long evicted = 0;
+
+            if(size >= MAX_ENTRIES) {
+                evicted = evict();
+            }else if((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+
+            int mask = keys.length - 1;
+            int slot = slotOf(key);
+
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            positions[slot] = position;
+            referenced[slot] = true;
+            size++;
+            return evicted;
+        }
+
+        /**
+         * Makes room for a new key. The clock hand sweeps the slots, giving referenced entries a
+         * second chance by clearing their bit, and drops the first entry not referenced since the
+         * last sweep. Ends within two sweeps.
+         */
+        private long evict() {
+
+            int mask = keys.length - 1;
+
+            while (true) {
+
+                int slot = clockHand & mask;
+                clockHand = slot + 1;
+
+                if(keys[slot] == 0) {
+                    continue;
+                }
+
+                if(referenced[slot]) {
+                    referenced[slot] = false;
+                    continue;
+                }
+
+                long key = keys[slot];
+                delete(slot);
+                return key;
+            }
+        }
+
+        /**
+         * Deletes a slot, shifting later entries of the probe sequence back so lookups need no tombstones.
+         */
+        void delete(int slot) {
+
+            int mask = keys.length - 1;
+            int hole = slot;
+
+            for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+
+                int home = slotOf(keys[next]);
+
+                if(((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    positions[hole] = positions[next];
+                    referenced[hole] = referenced[next];
+                    hole = next;
+                }
+            }
+
+            keys[hole] = 0;
+            positions[hole] = 0;
+            referenced[hole] = false;
+            size--;
+        }
+
+        private void resize(int capacity) {
+
+            long[] oldKeys = keys;
+            int[] oldPositions = positions;
+            boolean[] oldReferenced = referenced;
+
+            keys = new long[capacity];
+            positions = new int[capacity];
+            referenced = new boolean[capacity];
+
+            int mask = capacity - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+
+                if(oldKeys[i] == 0) {
+                    continue;
+                }
+
+                int slot = slotOf(oldKeys[i]);
+
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+
+                keys[slot] = oldKeys[i];
+                positions[slot] = oldPositions[i];
+                referenced[slot] = oldReferenced[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package pl.droidsonroids.casty;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v7.media.MediaRouter;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.framework.SessionManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recovers playback after the session was suspended, e.g. by a Wi-Fi blip, or the process died.
+ * While content plays, the media, position and queue index are snapshotted to local storage; the
+ * playlist is only rewritten when it changes. On suspension the session is watched with bounded
+ * exponential backoff and the last route is selected again if the framework gave up resuming it.
+ * Once connected to the same device, playback is restored with a single load request unless the
+ * receiver still plays it, and the time to recover is reported to {@link CastyMetrics}. Only a
+ * resumed session or one started by recovery itself restores the snapshot: a session the user
+ * starts, or giving up on recovery, discards it. Must be used from the main thread.
+ */
+final class SessionRecovery {
+
+    static final long BACKOFF_INITIAL = 1000;
+    static final long BACKOFF_MAX = 16000;
+    static final int MAX_ATTEMPTS = 6;
+    static final long SAVE_INTERVAL = 10000;
+    static final long MAX_SNAPSHOT_AGE = 30 * 60 * 1000;
+
+    private static final String TAG = "SessionRecovery";
+    private static final String STATE_FILE_NAME = "casty_recovery_state";
+    private static final String PLAYLIST_FILE_NAME = "casty_recovery_playlist";
+    private static final int MAGIC = 0xCA57EC01;
+    private static final int VERSION = 1;
+
+    private final CastyCore core;
+    private final SessionManager sessionManager;
+    private final MediaRouter mediaRouter;
+    private final CastyMetrics metrics;
+    private final File stateFile;
+    private final File playlistFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Handler ioHandler;
+
+    private MediaData[] mediaPlaylist;
+    private Snapshot snapshot;
+    private long savedAt;
+    private MediaData[] savedPlaylist;
+    private long playlistId;
+    private String routeId;
+
+    private long recoveryStartedAt;
+    private int attempt;
+    private boolean suspended;
+    /**
+     * Whether the current or starting session was resumed. A session found at startup is one
+     * the framework resumed for the new process.
+     */
+    private boolean sessionResumed = true;
+    private boolean awaitingStatus;
+    private boolean restoring;
+
+    SessionRecovery(Context context, CastyCore core, SessionManager sessionManager, CastyMetrics metrics) {
+        this.core = core;
+        this.sessionManager = sessionManager;
+        this.mediaRouter = MediaRouter.getInstance(context);
+        this.metrics = metrics;
+        this.stateFile = new File(context.getFilesDir(), STATE_FILE_NAME);
+        this.playlistFile = new File(context.getFilesDir(), PLAYLIST_FILE_NAME);
+
+        HandlerThread thread = new HandlerThread("casty-recovery", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        this.ioHandler = new Handler(thread.getLooper());
+        this.ioHandler.post(readRunnable);
+    }
+
+    /**
+     * Called when new content is loaded. It replaces whatever was to be recovered.
+     *
+     * @param mediaData media loaded on its own, null for a queue
+     */
+    void onLoad(MediaData mediaData) {
+
+        mediaPlaylist = mediaData != null ? new MediaData[]{mediaData} : null;
+
+        if(restoring) {
+            return;
+        }
+
+        awaitingStatus = false;
+
+        if(snapshot != null) {
+            discard();
+        }
+    }
+
+    /**
+     * Called when a new session is starting. Unless recovery selected the route again, the user
+     * started it, so nothing is recovered.
+     */
+    void onSessionStarting() {
+
+        sessionResumed = false;
+
+        if(snapshot != null && recoveryStartedAt == 0) {
+            discard();
+        }
+    }
+
+    /**
+     * Called when the framework is resuming a session, e.g. after the process died.
+     */
+    void onSessionResuming() {
+
+        sessionResumed = true;
+
+        if(snapshot != null && recoveryStartedAt == 0) {
+            startRecovery();
+        }
+    }
+
+    void onSessionSuspended() {
+
+        if(recoveryStartedAt != 0) {
+            return;
+        }
+
+        PlaybackSnapshot playback = core.getPlaybackSnapshot();
+        Snapshot current = !playback.isIdle() ? capture(playback) : null;
+
+        if(current != null) {
+            save(current);
+        }
+
+        if(snapshot != null) {
+            startRecovery();
+            suspended = true;
+            scheduleAttempt();
+        }
+    }
+
+    /**
+     * Called when a session started or resumed, after the remote client was bound.
+     *
+     * @param resumed true if an existing session was resumed, so the receiver may still play
+     */
+    void onSessionConnected(boolean resumed) {
+
+        sessionResumed = resumed;
+        routeId = routeIdOf(mediaRouter.getSelectedRoute());
+        mainHandler.removeCallbacks(attemptRunnable);
+
+        if(snapshot == null || recoveryStartedAt == 0) {
+            return;
+        }
+
+        if(!TextUtils.equals(routeId, snapshot.routeId) || System.currentTimeMillis() - snapshot.savedAt > MAX_SNAPSHOT_AGE) {
+            discard();
+            return;
+        }
+
+        if(resumed) {
+            awaitingStatus = true;
+
+            if(core.getRemoteMediaClient() != null && core.getRemoteMediaClient().getMediaStatus() != null) {
+                onStatusUpdated(core.getPlaybackSnapshot());
+            }
+        }else {
+            restore();
+        }
+    }
+
+    /**
+     * Called when the session ended. Unless recovering, the user ended it, so nothing is recovered.
+     */
+    void onSessionEnded() {
+
+        if(recoveryStartedAt == 0) {
+
+            if(snapshot != null) {
+                discard();
+            }
+
+            return;
+        }
+
+        onSessionFailed();
+    }
+
+    /**
+     * Called when starting or resuming a session failed. A session lost to suspension is retried,
+     * otherwise recovery is given up.
+     */
+    void onSessionFailed() {
+
+        awaitingStatus = false;
+
+        if(recoveryStartedAt == 0) {
+            return;
+        }
+
+        if(suspended) {
+            scheduleAttempt();
+        }else {
+            failRecovery();
+        }
+    }
+
+    /**
+     * Checks a status update for recovered playback and snapshots it otherwise.
+     *
+     * @param playback the snapshot built for the status update
+     */
+    void onStatusUpdated(PlaybackSnapshot playback) {
+
+        if(awaitingStatus && playback.getPlayerState() != MediaStatus.PLAYER_STATE_UNKNOWN) {
+            awaitingStatus = false;
+
+            int idleReason = playback.getIdleReason();
+
+            if(playback.isIdle() && (idleReason == MediaStatus.IDLE_REASON_FINISHED || idleReason == MediaStatus.IDLE_REASON_CANCELED)) {
+                // finished or stopped meanwhile, nothing to recover
+                discard();
+                return;
+            }else if(playback.isIdle() || playback.getContentId() == null) {
+                restore();
+            }else if(!isRecovered(playback)) {
+                // the receiver plays something else meanwhile, e.g. from another sender
+                discard();
+                return;
+            }
+        }
+
+        if(recoveryStartedAt != 0) {
+
+            if(awaitingStatus) {
+                return;
+            }
+
+            if(isRecovered(playback)) {
+                finishRecovery();
+            }else if(!playback.isIdle() && playback.getContentId() != null) {
+                failRecovery();
+            }
+
+            return;
+        }
+
+        if(playback.isIdle()) {
+
+            int idleReason = playback.getIdleReason();
+
+            if(snapshot != null && (idleReason == MediaStatus.IDLE_REASON_FINISHED
+                    || idleReason == MediaStatus.IDLE_REASON_CANCELED || idleReason == MediaStatus.IDLE_REASON_ERROR)) {
+                discard();
+            }
+
+            return;
+        }
+
+        Snapshot current = capture(playback);
+
+        if(current != null && (snapshot == null || current.playlist != snapshot.playlist || current.index != snapshot.index
+                || current.playing != snapshot.playing || SystemClock.elapsedRealtime() - savedAt >= SAVE_INTERVAL)) {
+            save(current);
+        }
+    }
+
+    void onProgressUpdated() {
+
+        if(recoveryStartedAt != 0 || snapshot == null || SystemClock.elapsedRealtime() - savedAt < SAVE_INTERVAL) {
+            return;
+        }
+
+        Snapshot current = capture(core.getPlaybackSnapshot());
+
+        if(current != null) {
+            save(current);
+        }
+    }
+
+    private boolean isRecovered(PlaybackSnapshot playback) {
+
+        String url = snapshot.playlist[snapshot.index].getUrl();
+        return !playback.isIdle() && url != null && url.equals(playback.getContentId());
+    }
+
+    private Snapshot capture(PlaybackSnapshot playback) {
+
+        CastyQueue queue = core.getQueue();
+        MediaData[] playlist;
+        int index;
+
+        if(queue.getCurrentIndex() >= 0) {
+            playlist = queue.getEntries();
+            index = queue.getCurrentIndex();
+        }else if(mediaPlaylist != null && TextUtils.equals(mediaPlaylist[0].getUrl(), playback.getContentId())) {
+            playlist = mediaPlaylist;
+            index = 0;
+        }else {
+            return null;
+        }
+
+        if(playlist != savedPlaylist) {
+            playlistId = Math.max(playlistId + 1, System.currentTimeMillis());
+        }
+
+        return new Snapshot(playlist, playlistId, index, core.getPlaybackClock().getPosition(),
+                playback.getPlayerState() != MediaStatus.PLAYER_STATE_PAUSED, routeId, System.currentTimeMillis());
+    }
+
+    private void save(final Snapshot current) {
+
+        final boolean playlistChanged = current.playlist != savedPlaylist;
+
+        snapshot = current;
+        savedPlaylist = current.playlist;
+        savedAt = SystemClock.elapsedRealtime();
+
+        ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+
+                    if(playlistChanged) {
+                        writePlaylist(current);
+                    }
+
+                    writeState(current);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save the playback snapshot", e);
+                }
+            }
+        });
+    }
+
+    private void discard() {
+        snapshot = null;
+        savedPlaylist = null;
+        stopRecovery();
+
+        ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stateFile.delete();
+                playlistFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Loads the snapshot in one request: a single load for media, a queue load otherwise. Paused
+     * media is loaded paused.
+     */
+    private void restore() {
+
+        Snapshot restored = snapshot;
+        final CastyResult result;
+
+        restoring = true;
+
+        if(restored.playlist.length == 1) {
+            result = core.load(null, restored.playlist[0].buildUpon()
+                    .setPosition(restored.position)
+                    .setAutoPlay(restored.playing)
+                    .build(), null);
+        }else {
+            List<MediaData> playlist = Arrays.asList(restored.playlist);
+            result = core.loadQueue(null, playlist, restored.index, restored.position, null);
+        }
+
+        restoring = false;
+
+        result.addOnDone(new Runnable() {
+            @Override
+            public void run() {
+
+                if(!result.isSuccess() && recoveryStartedAt != 0) {
+                    failRecovery();
+                }
+            }
+        });
+    }
+
+    private void startRecovery() {
+        recoveryStartedAt = SystemClock.elapsedRealtime();
+        attempt = 0;
+    }
+
+    private void finishRecovery() {
+        metrics.onSessionRecovered(SystemClock.elapsedRealtime() - recoveryStartedAt);
+        stopRecovery();
+    }
+
+    /**
+     * Gives up recovering. The snapshot is discarded, so a later session does not load stale content.
+     */
+    private void failRecovery() {
+        metrics.onRecoveryFailed();
+        discard();
+    }
+
+    private void stopRecovery() {
+        mainHandler.removeCallbacks(attemptRunnable);
+        recoveryStartedAt = 0;
+        attempt = 0;
+        suspended = false;
+        awaitingStatus = false;
+    }
+
+    private void scheduleAttempt() {
+        mainHandler.removeCallbacks(attemptRunnable);
+        mainHandler.postDelayed(attemptRunnable, Math.min(BACKOFF_INITIAL << attempt, BACKOFF_MAX));
+    }
+
+    /**
+     * Leaves a suspended or resuming session to the framework and selects the route again once
+     * there is no session anymore.
+     */
+    private final Runnable attemptRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            if(recoveryStartedAt == 0 || core.isConnected()) {
+                return;
+            }
+
+            if(attempt == MAX_ATTEMPTS) {
+                failRecovery();
+                return;
+            }
+
+            attempt++;
+            metrics.onRecoveryAttempt();
+
+            if(sessionManager.getCurrentCastSession() == null && !core.isSessionStarting()) {
+                selectRoute(snapshot.routeId);
+            }
+
+            scheduleAttempt();
+        }
+    };
+
+    private void selectRoute(String id) {
+
+        if(id == null) {
+            return;
+        }
+
+        for (MediaRouter.RouteInfo route : mediaRouter.getRoutes()) {
+
+            if(id.equals(route.getId())) {
+                route.select();
+                return;
+            }
+        }
+    }
+
+    private static String routeIdOf(MediaRouter.RouteInfo route) {
+        return route != null && !route.isDefault() ? route.getId() : null;
+    }
+
+    /**
+     * Adopts the snapshot saved by a previous process unless something was loaded meanwhile or the
+     * user already started a new session.
+     */
+    private void onSnapshotRead(Snapshot stored) {
+
+        if(snapshot != null || mediaPlaylist != null || core.getQueue().getCurrentIndex() >= 0) {
+            return;
+        }
+
+        snapshot = stored;
+        savedPlaylist = stored.playlist;
+        playlistId = stored.playlistId;
+
+        if((core.isConnected() || core.isSessionStarting()) && !sessionResumed) {
+            discard();
+        }else if(core.isConnected()) {
+            startRecovery();
+            onSessionConnected(true);
+        }else if(core.isSessionStarting()) {
+            startRecovery();
+        }
+    }
+
+    private final Runnable readRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            final Snapshot stored;
+
+            try {
+                stored = read();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the playback snapshot", e);
+                return;
+            }
+
+            if(stored == null) {
+                return;
+            }
+
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onSnapshotRead(stored);
+                }
+            });
+        }
+    };
+
+    private void writePlaylist(Snapshot current) throws IOException {
+
+        File temporary = new File(playlistFile.getPath() + ".tmp");
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+
+        try {
+            outputStream.writeLong(current.playlistId);
+            MediaDataCodec.writeList(outputStream, Arrays.asList(current.playlist));
+        } finally {
+            outputStream.close();
+        }
+
+        if(!temporary.renameTo(playlistFile)) {
+            throw new IOException("Could not replace " + playlistFile);
+        }
+    }
+
+    private void writeState(Snapshot current) throws IOException {
+
+        File temporary = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(temporary));
+
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeLong(current.playlistId);
+            outputStream.writeInt(current.index);
+            outputStream.writeLong(current.position);
+            outputStream.writeBoolean(current.playing);
+            outputStream.writeUTF(current.routeId != null ? current.routeId : "");
+            outputStream.writeLong(current.savedAt);
+        } finally {
+            outputStream.close();
+        }
+
+        if(!temporary.renameTo(stateFile)) {
+            throw new IOException("Could not replace " + stateFile);
+        }
+    }
+
+    /**
+     * Reads the saved snapshot. Runs on the background thread.
+     *
+     * @return the snapshot or null if there is none or it is incomplete
+     */
+    private Snapshot read() throws IOException {
+
+        if(!stateFile.exists() || !playlistFile.exists()) {
+            return null;
+        }
+
+        long id;
+        int index;
+        long position;
+        boolean playing;
+        String route;
+        long stateSavedAt;
+
+        DataInputStream stateStream = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+
+        try {
+
+            if(stateStream.readInt() != MAGIC || stateStream.readInt() > VERSION) {
+                return null;
+            }
+
+            id = stateStream.readLong();
+            index = stateStream.readInt();
+            position = stateStream.readLong();
+            playing = stateStream.readBoolean();
+            route = stateStream.readUTF();
+            stateSavedAt = stateStream.readLong();
+        } finally {
+            stateStream.close();
+        }
+
+        DataInputStream playlistStream = new DataInputStream(new BufferedInputStream(new FileInputStream(playlistFile)));
+        List<MediaData> playlist;
+
+        try {
+
+            if(playlistStream.readLong() != id) {
+                return null;
+            }
+
+            playlist = MediaDataCodec.readList(playlistStream);
+        } finally {
+            playlistStream.close();
+        }
+
+        if(index < 0 || index >= playlist.size()) {
+            return null;
+        }
+
+        return new Snapshot(playlist.toArray(new MediaData[playlist.size()]), id, index, position, playing,
+                route.isEmpty() ? null : route, stateSavedAt);
+    }
+
+    /**
+     * What to recover. Immutable, so it can be written on the background thread.
+     */
+    private static final class Snapshot {
+
+        final MediaData[] playlist;
+        final long playlistId;
+        final int index;
+        final long position;
+        final boolean playing;
+        final String routeId;
+        final long savedAt;
+
+        Snapshot(MediaData[] playlist, long playlistId, int index, long position, boolean playing, String routeId, long savedAt) {
+            this.playlist = playlist;
+            this.playlistId = playlistId;
+            this.index = index;
+            this.position = position;
+            this.playing = playing;
+            this.routeId = routeId;
+            this.savedAt = savedAt;
+        }
+    }
+}
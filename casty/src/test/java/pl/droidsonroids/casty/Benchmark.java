@@ -0,0 +1,84 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Minimal timing harness for the benchmarks in this source set. Each measurement is warmed up
+ * first and the best of several rounds is reported, which is stable enough to compare approaches
+ * on the same machine. Results are printed, not asserted, so benchmarks never fail a build on a
+ * slow machine.
+ * <p>
+ * Benchmarks are skipped in regular unit test runs, so they neither slow them down nor print to
+ * their output. Run them with {@code ./gradlew :casty:testDebugUnitTest -Pbenchmarks}.
+ */
+final class Benchmark {
+
+    static final String ENABLED_PROPERTY = "casty.benchmarks";
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Skips the calling benchmark unless benchmarks are enabled with the {@link #ENABLED_PROPERTY}
+     * system property. Called from the benchmark's {@code @Before} method.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean(ENABLED_PROPERTY));
+    }
+
+    /**
+     * Measures the body, which must perform the given number of operations per run.
+     *
+     * @param operations operations performed by one run of the body
+     * @param body code to measure
+     * @return best time per operation in nanoseconds
+     */
+    static double nanosPerOperation(int operations, Runnable body) {
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            body.run();
+        }
+
+        long best = Long.MAX_VALUE;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return (double) best / operations;
+    }
+
+    /**
+     * Measures the bytes allocated by the body on the calling thread.
+     *
+     * @param body code to measure
+     * @return allocated bytes, or -1 if the JVM cannot measure allocations
+     */
+    static long allocatedBytes(Runnable body) {
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        if(!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        body.run();
+        return allocationBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    static void report(String name, String format, Object... args) {
+        System.out.println(name + ": " + String.format(Locale.US, format, args));
+    }
+}
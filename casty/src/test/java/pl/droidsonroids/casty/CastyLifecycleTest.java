@@ -0,0 +1,155 @@
+package pl.droidsonroids.casty;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Handles are created through {@link Casty#getInstance(Activity)} while warm-up is held back, so
+ * they are pending and keep their listeners like valid handles do without Google Play Services.
+ * Each listener captures its Activity, as inner classes of it commonly do.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class CastyLifecycleTest {
+
+    private static final int ROTATIONS = 300;
+    private static final int EVENTS = 100;
+    private static final int GC_ATTEMPTS = 20;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        Casty.warmUp(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void handleIsKeptUntilActivityIsDestroyed() {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        List<WeakReference<?>> references = new ArrayList<>();
+        references.add(new WeakReference<>(createHandle(controller.get())));
+
+        controller.start().resume();
+        assertEquals(1, countRetained(references));
+
+        references.add(new WeakReference<>(controller.get()));
+        controller.pause().stop().destroy();
+        controller = null;
+
+        assertEquals(0, countRetained(references));
+    }
+
+    @Test
+    public void activityFinishedWithoutDestroyIsCollected() {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        List<WeakReference<?>> references = new ArrayList<>();
+        references.add(new WeakReference<>(createHandle(controller.get())));
+        references.add(new WeakReference<>(controller.get()));
+
+        controller.start().resume().pause().stop();
+        controller = null;
+
+        assertEquals(0, countRetained(references));
+    }
+
+    @Test
+    public void rotationsDoNotRetainActivities() {
+        List<WeakReference<?>> references = new ArrayList<>();
+        Bundle savedState = null;
+
+        for (int i = 0; i < ROTATIONS; i++) {
+            ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create(savedState);
+            references.add(new WeakReference<>(createHandle(controller.get())));
+            references.add(new WeakReference<>(controller.get()));
+            controller.start().resume();
+
+            savedState = new Bundle();
+            controller.saveInstanceState(savedState).pause().stop().destroy();
+        }
+
+        assertEquals(0, countRetained(references));
+    }
+
+    @Test
+    public void headlessHandleIsSharedUntilReleased() {
+        Casty first = Casty.getHeadlessInstance(RuntimeEnvironment.application);
+
+        for (int i = 0; i < EVENTS; i++) {
+            assertSame(first, Casty.getHeadlessInstance(RuntimeEnvironment.application));
+        }
+
+        first.release();
+        Casty second = Casty.getHeadlessInstance(RuntimeEnvironment.application);
+        assertNotSame(first, second);
+        second.release();
+    }
+
+    /**
+     * Creates a handle through the public entry point and adds a listener capturing the Activity.
+     */
+    private static Casty createHandle(final Activity activity) {
+
+        Casty casty = Casty.getInstance(activity);
+
+        casty.addOnPlaybackStateChangeListener(new OnPlaybackStateChangeListener() {
+            @Override
+            public void onPlaybackStateChanged(Casty casty) {
+                activity.setTitle(String.valueOf(casty.isPlaying()));
+            }
+
+            @Override
+            public void onProgressChanged(long position, long duration) {
+                //no-op
+            }
+        });
+
+        return casty;
+    }
+
+    /**
+     * Counts referents still reachable, collecting garbage until the count is stable at zero or
+     * the attempts run out.
+     */
+    private static int countRetained(List<WeakReference<?>> references) {
+
+        int retained = references.size();
+
+        for (int attempt = 0; attempt < GC_ATTEMPTS && retained > 0; attempt++) {
+            System.gc();
+            System.runFinalization();
+            retained = 0;
+
+            for (WeakReference<?> reference : references) {
+
+                if(reference.get() != null) {
+                    retained++;
+                }
+            }
+        }
+
+        return retained;
+    }
+}
@@ -0,0 +1,151 @@
+package pl.droidsonroids.casty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class CastyPublisherTest {
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 100;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void inlineRequestOffMainThreadDeliversOnMainThread() throws InterruptedException {
+        verifyRequestOffMainThread(CastyDispatcher.INLINE);
+    }
+
+    @Test
+    public void mainFrameRequestOffMainThreadDeliversOnMainThread() throws InterruptedException {
+        verifyRequestOffMainThread(CastyDispatcher.MAIN_FRAME);
+    }
+
+    @Test
+    public void concurrentRequestsAddUp() throws InterruptedException {
+        CastyPublisher<Integer> publisher = new CastyPublisher<>(null);
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<>();
+        final CastySubscription subscription = publisher.subscribe(subscriber);
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+
+                for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                    subscription.request(1);
+                }
+            }
+        });
+
+        int requested = THREADS * REQUESTS_PER_THREAD;
+
+        for (int i = 0; i <= requested; i++) {
+            publisher.publish(i);
+            ShadowLooper.runUiThreadTasks();
+        }
+
+        assertEquals(requested, subscriber.values.size());
+        assertEquals(Integer.valueOf(requested - 1), subscriber.values.get(requested - 1));
+        assertOnlyMainThread(subscriber);
+    }
+
+    @Test
+    public void repeatedProgressIsNotDelivered() {
+        CastyPublisher<PlaybackProgress> publisher = new CastyPublisher<>(null);
+        RecordingSubscriber<PlaybackProgress> subscriber = new RecordingSubscriber<>();
+        publisher.subscribe(subscriber).request(Long.MAX_VALUE);
+
+        publisher.publish(new PlaybackProgress(1000, 60000));
+        publisher.publish(new PlaybackProgress(1000, 60000));
+        publisher.publish(new PlaybackProgress(2000, 60000));
+
+        assertEquals(2, subscriber.values.size());
+        assertEquals(2000, subscriber.values.get(1).getPosition());
+    }
+
+    private static void verifyRequestOffMainThread(CastyDispatcher dispatcher) throws InterruptedException {
+        CastyPublisher<String> publisher = new CastyPublisher<>(null);
+        publisher.publish("value");
+        RecordingSubscriber<String> subscriber = new RecordingSubscriber<>();
+        final CastySubscription subscription = publisher.subscribe(subscriber, dispatcher);
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                subscription.request(1);
+            }
+        });
+
+        assertTrue(subscriber.values.isEmpty());
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(Collections.singletonList("value"), subscriber.values);
+        assertOnlyMainThread(subscriber);
+    }
+
+    private static void runConcurrently(Runnable body) throws InterruptedException {
+
+        Thread[] threads = new Thread[THREADS];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(body);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void assertOnlyMainThread(RecordingSubscriber<?> subscriber) {
+
+        for (Thread thread : subscriber.threads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+    }
+
+    private static final class RecordingSubscriber<T> implements CastySubscriber<T> {
+
+        final List<T> values = Collections.synchronizedList(new ArrayList<T>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        @Override
+        public void onSubscribe(CastySubscription subscription) {
+            //no-op
+        }
+
+        @Override
+        public void onNext(T value) {
+            threads.add(Thread.currentThread());
+            values.add(value);
+        }
+
+        @Override
+        public void onComplete() {
+            //no-op
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Dispatch cost of {@link ListenerRegistry} with 1 to 100 listeners, compared with iterating a
+ * {@link HashSet} as Casty did before.
+ */
+public class ListenerRegistryBenchmark {
+
+    private static final int[] LISTENER_COUNTS = {1, 10, 100};
+    private static final int DISPATCHES = 100000;
+
+    private long sink;
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void dispatch() {
+
+        for (int count : LISTENER_COUNTS) {
+            final ListenerRegistry<Listener> registry = new ListenerRegistry<>(new Listener[0]);
+            final Set<Listener> set = new HashSet<>();
+
+            for (int i = 0; i < count; i++) {
+                Listener listener = new Listener();
+                registry.add(listener);
+                set.add(listener);
+            }
+
+            double registryNanos = Benchmark.nanosPerOperation(DISPATCHES, new Runnable() {
+                @Override
+                public void run() {
+
+                    for (int i = 0; i < DISPATCHES; i++) {
+
+                        for (Listener listener : registry.snapshot()) {
+                            listener.onEvent(i);
+                        }
+                    }
+                }
+            });
+
+            double setNanos = Benchmark.nanosPerOperation(DISPATCHES, new Runnable() {
+                @Override
+                public void run() {
+
+                    for (int i = 0; i < DISPATCHES; i++) {
+
+                        for (Listener listener : set) {
+                            listener.onEvent(i);
+                        }
+                    }
+                }
+            });
+
+            Benchmark.report("ListenerRegistry dispatch", "%d listeners: registry %.1f ns, HashSet %.1f ns",
+                    count, registryNanos, setNanos);
+        }
+    }
+
+    private final class Listener {
+
+        void onEvent(int value) {
+            sink += value;
+        }
+    }
+}
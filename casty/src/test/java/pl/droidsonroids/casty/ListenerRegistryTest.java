@@ -0,0 +1,133 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerRegistryTest {
+
+    private final ListenerRegistry<Runnable> registry = new ListenerRegistry<>(new Runnable[0]);
+
+    @Test
+    public void addIgnoresDuplicates() {
+        Runnable listener = new Counter();
+
+        assertTrue(registry.add(listener));
+        assertFalse(registry.add(listener));
+        assertEquals(1, registry.snapshot().length);
+    }
+
+    @Test
+    public void removeKeepsOrder() {
+        Runnable first = new Counter();
+        Runnable second = new Counter();
+        Runnable third = new Counter();
+        registry.add(first);
+        registry.add(second);
+        registry.add(third);
+
+        assertTrue(registry.remove(second));
+        assertFalse(registry.remove(second));
+
+        Runnable[] snapshot = registry.snapshot();
+        assertEquals(2, snapshot.length);
+        assertSame(first, snapshot[0]);
+        assertSame(third, snapshot[1]);
+    }
+
+    @Test
+    public void emptySnapshotIsShared() {
+        Runnable[] empty = registry.snapshot();
+        Runnable listener = new Counter();
+        registry.add(listener);
+        registry.remove(listener);
+
+        assertSame(empty, registry.snapshot());
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        Runnable listener = new Counter();
+        registry.add(listener);
+        Runnable[] snapshot = registry.snapshot();
+
+        registry.add(new Counter());
+        registry.remove(listener);
+
+        assertEquals(1, snapshot.length);
+        assertSame(listener, snapshot[0]);
+    }
+
+    @Test
+    public void listenerCanRemoveItselfDuringDispatch() {
+        final Counter other = new Counter();
+        Runnable selfRemoving = new Runnable() {
+            @Override
+            public void run() {
+                registry.remove(this);
+            }
+        };
+        registry.add(selfRemoving);
+        registry.add(other);
+
+        for (Runnable listener : registry.snapshot()) {
+            listener.run();
+        }
+
+        assertEquals(1, other.calls);
+        assertEquals(1, registry.snapshot().length);
+        assertSame(other, registry.snapshot()[0]);
+    }
+
+    @Test
+    public void concurrentAddAndRemoveKeepEveryListener() throws InterruptedException {
+        final int threads = 4;
+        final int listenersPerThread = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int i = 0; i < listenersPerThread; i++) {
+                        Counter transientListener = new Counter();
+                        registry.add(new Counter());
+                        registry.add(transientListener);
+                        registry.remove(transientListener);
+                    }
+
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        done.await();
+
+        assertEquals(threads * listenersPerThread, registry.snapshot().length);
+    }
+
+    private static final class Counter implements Runnable {
+
+        int calls;
+
+        @Override
+        public void run() {
+            calls++;
+        }
+    }
+}
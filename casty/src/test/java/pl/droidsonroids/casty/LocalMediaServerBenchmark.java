@@ -0,0 +1,112 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput of {@link LocalMediaServer} against local clients, each reading its own slice of a
+ * file with range requests over keep-alive connections, the way receivers fetch media.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class LocalMediaServerBenchmark {
+
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int RANGE_SIZE = 1024 * 1024;
+    private static final int[] CLIENT_COUNTS = {1, 4, 16};
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void rangeThroughput() throws Exception {
+
+        File file = LocalMediaServerTest.createFile(new byte[FILE_SIZE]);
+        LocalMediaServer server = LocalMediaServer.getInstance(RuntimeEnvironment.application);
+
+        try {
+            String url = LocalMediaServerTest.serve(server, file);
+
+            for (int clients : CLIENT_COUNTS) {
+                long start = System.nanoTime();
+                long bytes = fetchConcurrently(url, clients);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                Benchmark.report("LocalMediaServer throughput", "%d clients: %.0f MB/s",
+                        clients, bytes / seconds / (1024 * 1024));
+            }
+        } finally {
+            server.stop();
+            file.delete();
+        }
+    }
+
+    private static long fetchConcurrently(final String url, int clients) throws Exception {
+
+        final CountDownLatch done = new CountDownLatch(clients);
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final int slice = FILE_SIZE / clients;
+
+        for (int i = 0; i < clients; i++) {
+            final long sliceStart = (long) i * slice;
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        for (long offset = sliceStart; offset < sliceStart + slice; offset += RANGE_SIZE) {
+                            long end = Math.min(offset + RANGE_SIZE, sliceStart + slice) - 1;
+                            HttpURLConnection connection = LocalMediaServerTest.open(url, "bytes=" + offset + "-" + end);
+                            bytes.addAndGet(drain(connection.getInputStream()));
+                        }
+                    } catch (IOException e) {
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        done.await();
+
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+
+        return bytes.get();
+    }
+
+    private static long drain(InputStream inputStream) throws IOException {
+
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+
+        try {
+            while ((read = inputStream.read(buffer)) >= 0) {
+                total += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,184 @@
+package pl.droidsonroids.casty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class LocalMediaServerTest {
+
+    private static final int FILE_SIZE = 256 * 1024;
+
+    private LocalMediaServer server;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        server = LocalMediaServer.getInstance(RuntimeEnvironment.application);
+        content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        file = createFile(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        file.delete();
+    }
+
+    @Test
+    public void servesWholeFile() throws IOException {
+        HttpURLConnection connection = open(serve(file), null);
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("video/mp4", connection.getContentType());
+        assertArrayEquals(content, readFully(connection.getInputStream()));
+    }
+
+    @Test
+    public void servesByteRange() throws IOException {
+        HttpURLConnection connection = open(serve(file), "bytes=100-199");
+
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 100-199/" + FILE_SIZE, connection.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), readFully(connection.getInputStream()));
+    }
+
+    @Test
+    public void servesSuffixRange() throws IOException {
+        HttpURLConnection connection = open(serve(file), "bytes=-10");
+
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 10, FILE_SIZE), readFully(connection.getInputStream()));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRange() throws IOException {
+        HttpURLConnection connection = open(serve(file), "bytes=" + FILE_SIZE + "-");
+
+        assertEquals(416, connection.getResponseCode());
+        assertEquals("bytes */" + FILE_SIZE, connection.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void unservedUrlIsNotFound() throws IOException {
+        String url = serve(file);
+        server.unserve(url);
+
+        assertEquals(404, open(url, null).getResponseCode());
+    }
+
+    @Test
+    public void missingFileIsNotFound() throws IOException {
+        String url = serve(file);
+        assertTrue(file.delete());
+
+        assertEquals(404, open(url, null).getResponseCode());
+    }
+
+    @Test
+    public void oversizedHeaderIsRejected() throws IOException {
+        URL url = new URL(serve(file));
+        char[] padding = new char[16 * 1024];
+        Arrays.fill(padding, 'a');
+
+        Socket socket = new Socket(url.getHost(), url.getPort());
+
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("GET " + url.getPath() + " HTTP/1.1\r\nX-Padding: " + new String(padding) + "\r\n\r\n").getBytes("US-ASCII"));
+            outputStream.flush();
+
+            String response = new String(readFully(socket.getInputStream()), "US-ASCII");
+            assertTrue(response, response.startsWith("HTTP/1.1 431 "));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String serve(File file) throws IOException {
+        return serve(server, file);
+    }
+
+    /**
+     * Serves a file and rewrites the url to the loopback address, so tests do not depend on the
+     * network the machine is connected to.
+     */
+    static String serve(LocalMediaServer server, File file) throws IOException {
+
+        String url = null;
+
+        try {
+            url = server.serve(file, "video/mp4");
+        } catch (IOException e) {
+            assumeNoException(e);
+        }
+
+        return url.replaceFirst("//[^/:]+:", "//127.0.0.1:");
+    }
+
+    static File createFile(byte[] content) throws IOException {
+
+        File file = File.createTempFile("casty", ".mp4");
+        FileOutputStream outputStream = new FileOutputStream(file);
+
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+
+        return file;
+    }
+
+    static HttpURLConnection open(String url, String range) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        if(range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+
+        return connection;
+    }
+
+    static byte[] readFully(InputStream inputStream) throws IOException {
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+
+        try {
+            while ((read = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,129 @@
+package pl.droidsonroids.casty;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaMetadata;
+import com.google.android.gms.common.images.WebImage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocations and time of building {@link MediaInfo}s for a catalog that is queued several times,
+ * once with derived copies, comparing the cached {@link MediaData#getMediaInfo()} with rebuilding
+ * it on every call as Casty did before.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class MediaDataBenchmark {
+
+    private static final int CATALOG_SIZE = 1000;
+    private static final int PASSES = 5;
+    private static final int CALLS = CATALOG_SIZE * (PASSES + 1);
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void mediaInfoAllocations() {
+
+        queue(createCatalog(), true);
+        queue(createCatalog(), false);
+
+        final List<MediaData> cachedCatalog = createCatalog();
+        final List<MediaData> rebuiltCatalog = createCatalog();
+
+        long cachedStart = System.nanoTime();
+        long cachedBytes = Benchmark.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                queue(cachedCatalog, true);
+            }
+        });
+        long cachedNanos = System.nanoTime() - cachedStart;
+
+        long rebuiltStart = System.nanoTime();
+        long rebuiltBytes = Benchmark.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                queue(rebuiltCatalog, false);
+            }
+        });
+        long rebuiltNanos = System.nanoTime() - rebuiltStart;
+
+        Benchmark.report("MediaInfo per call", "cached %d bytes, %.0f ns; rebuilt %d bytes, %.0f ns",
+                cachedBytes / CALLS, (double) cachedNanos / CALLS, rebuiltBytes / CALLS, (double) rebuiltNanos / CALLS);
+    }
+
+    /**
+     * Requests the MediaInfo of every entry once per pass, then once for a copy of each entry with
+     * a start position, as the queue and resume logic do.
+     */
+    private static void queue(List<MediaData> catalog, boolean cached) {
+
+        for (int pass = 0; pass < PASSES; pass++) {
+
+            for (MediaData mediaData : catalog) {
+                mediaInfoOf(mediaData, cached);
+            }
+        }
+
+        for (MediaData mediaData : catalog) {
+            mediaInfoOf(mediaData.buildUpon().setPosition(30000).build(), cached);
+        }
+    }
+
+    private static MediaInfo mediaInfoOf(MediaData mediaData, boolean cached) {
+        return cached ? mediaData.getMediaInfo() : createMediaInfo(mediaData);
+    }
+
+    private static List<MediaData> createCatalog() {
+
+        List<MediaData> catalog = new ArrayList<>(CATALOG_SIZE);
+
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            catalog.add(new MediaData.Builder("https://example.com/video/" + i + ".mp4")
+                    .setStreamType(MediaData.STREAM_TYPE_BUFFERED)
+                    .setContentType("video/mp4")
+                    .setMediaType(MediaData.MEDIA_TYPE_MOVIE)
+                    .setTitle("Title " + i)
+                    .setSubtitle("Subtitle " + i)
+                    .addPhotoUrl("https://example.com/image/" + i + ".jpg")
+                    .addPhotoUrl("https://example.com/image/" + i + "-large.jpg")
+                    .build());
+        }
+
+        return catalog;
+    }
+
+    /**
+     * The MediaInfo construction MediaData used on every call before it was cached.
+     */
+    private static MediaInfo createMediaInfo(MediaData mediaData) {
+        MediaMetadata mediaMetadata = new MediaMetadata(mediaData.getMediaType());
+
+        if (!TextUtils.isEmpty(mediaData.getTitle())) mediaMetadata.putString(MediaMetadata.KEY_TITLE, mediaData.getTitle());
+        if (!TextUtils.isEmpty(mediaData.getSubtitle())) mediaMetadata.putString(MediaMetadata.KEY_SUBTITLE, mediaData.getSubtitle());
+
+        for (String imageUrl : mediaData.getImageUrls()) {
+            mediaMetadata.addImage(new WebImage(Uri.parse(imageUrl)));
+        }
+
+        return new MediaInfo.Builder(mediaData.getUrl())
+                .setStreamType(mediaData.getStreamType())
+                .setContentType(mediaData.getContentType())
+                .setStreamDuration(mediaData.getStreamDuration())
+                .setMetadata(mediaMetadata)
+                .build();
+    }
+}
@@ -0,0 +1,164 @@
+package pl.droidsonroids.casty;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Size and time of persisting a large up-next list with {@link MediaDataCodec} compared to the
+ * equivalent {@link JSONArray} of {@link JSONObject}s.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class MediaDataCodecBenchmark {
+
+    private static final int LIST_SIZE = 100000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void codecVersusJson() throws Exception {
+        final List<MediaData> mediaDataList = MediaDataCodecTest.createList(LIST_SIZE);
+        final byte[] codecBytes = encodeCodec(mediaDataList);
+        final byte[] jsonBytes = encodeJson(mediaDataList);
+
+        assertEquals(mediaDataList, decodeCodec(codecBytes));
+        assertEquals(mediaDataList, decodeJson(jsonBytes));
+
+        double codecEncodeNanos = Benchmark.nanosPerOperation(LIST_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                encodeCodec(mediaDataList);
+            }
+        });
+        double jsonEncodeNanos = Benchmark.nanosPerOperation(LIST_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                encodeJson(mediaDataList);
+            }
+        });
+        double codecDecodeNanos = Benchmark.nanosPerOperation(LIST_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                decodeCodec(codecBytes);
+            }
+        });
+        double jsonDecodeNanos = Benchmark.nanosPerOperation(LIST_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                decodeJson(jsonBytes);
+            }
+        });
+
+        Benchmark.report("MediaData list size", "codec %d bytes, JSON %d bytes (%.1fx)",
+                codecBytes.length, jsonBytes.length, (double) jsonBytes.length / codecBytes.length);
+        Benchmark.report("MediaData encode per item", "codec %.0f ns, JSON %.0f ns (%.1fx)",
+                codecEncodeNanos, jsonEncodeNanos, jsonEncodeNanos / codecEncodeNanos);
+        Benchmark.report("MediaData decode per item", "codec %.0f ns, JSON %.0f ns (%.1fx)",
+                codecDecodeNanos, jsonDecodeNanos, jsonDecodeNanos / codecDecodeNanos);
+    }
+
+    private static byte[] encodeCodec(List<MediaData> mediaDataList) {
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try {
+            MediaDataCodec.writeList(outputStream, mediaDataList);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private static List<MediaData> decodeCodec(byte[] bytes) {
+
+        try {
+            return MediaDataCodec.readList(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] encodeJson(List<MediaData> mediaDataList) {
+
+        JSONArray jsonArray = new JSONArray();
+
+        try {
+            for (MediaData mediaData : mediaDataList) {
+                JSONArray imageUrls = new JSONArray();
+
+                for (String imageUrl : mediaData.getImageUrls()) {
+                    imageUrls.put(imageUrl);
+                }
+
+                jsonArray.put(new JSONObject()
+                        .put("url", mediaData.getUrl())
+                        .put("streamType", mediaData.getStreamType())
+                        .put("contentType", mediaData.getContentType())
+                        .put("streamDuration", mediaData.getStreamDuration())
+                        .put("mediaType", mediaData.getMediaType())
+                        .put("title", mediaData.getTitle())
+                        .put("subtitle", mediaData.getSubtitle())
+                        .put("imageUrls", imageUrls)
+                        .put("autoPlay", mediaData.isAutoPlay())
+                        .put("position", mediaData.getPosition()));
+            }
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+
+        return jsonArray.toString().getBytes(UTF_8);
+    }
+
+    @SuppressWarnings("WrongConstant")
+    private static List<MediaData> decodeJson(byte[] bytes) {
+
+        try {
+            JSONArray jsonArray = new JSONArray(new String(bytes, UTF_8));
+            List<MediaData> mediaDataList = new ArrayList<>(jsonArray.length());
+
+            for (int i = 0; i < jsonArray.length(); i++) {
+                JSONObject jsonObject = jsonArray.getJSONObject(i);
+                MediaData.Builder builder = new MediaData.Builder(jsonObject.optString("url", null))
+                        .setStreamType(jsonObject.getInt("streamType"))
+                        .setContentType(jsonObject.optString("contentType", null))
+                        .setStreamDuration(jsonObject.getLong("streamDuration"))
+                        .setMediaType(jsonObject.getInt("mediaType"))
+                        .setTitle(jsonObject.optString("title", null))
+                        .setSubtitle(jsonObject.optString("subtitle", null))
+                        .setAutoPlay(jsonObject.getBoolean("autoPlay"))
+                        .setPosition(jsonObject.getLong("position"));
+                JSONArray imageUrls = jsonObject.getJSONArray("imageUrls");
+
+                for (int j = 0; j < imageUrls.length(); j++) {
+                    builder.addPhotoUrl(imageUrls.getString(j));
+                }
+
+                mediaDataList.add(builder.build());
+            }
+
+            return mediaDataList;
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
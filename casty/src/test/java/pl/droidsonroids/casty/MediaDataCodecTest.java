@@ -0,0 +1,322 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class MediaDataCodecTest {
+
+    @Test
+    public void allFieldsRoundTrip() throws IOException {
+        MediaData mediaData = new MediaData.Builder("https://example.com/video.mp4")
+                .setStreamType(MediaData.STREAM_TYPE_BUFFERED)
+                .setContentType("video/mp4")
+                .setStreamDuration(5400000)
+                .setMediaType(MediaData.MEDIA_TYPE_MOVIE)
+                .setTitle("Title")
+                .setSubtitle("Subtitle \u017c\u00f3\u0142w \ud83c\udfac")
+                .addPhotoUrl("https://example.com/small.jpg")
+                .addPhotoUrl("https://example.com/large.jpg")
+                .setAutoPlay(false)
+                .setPosition(123456)
+                .build();
+
+        MediaData decoded = MediaDataCodec.decode(MediaDataCodec.encode(mediaData));
+
+        assertEquals(mediaData, decoded);
+        assertEquals(Arrays.asList("https://example.com/small.jpg", "https://example.com/large.jpg"), decoded.getImageUrls());
+    }
+
+    @Test
+    public void missingAndExtremeValuesRoundTrip() throws IOException {
+        MediaData empty = new MediaData.Builder(null).build();
+        MediaData extreme = new MediaData.Builder("")
+                .setStreamType(MediaData.STREAM_TYPE_INVALID)
+                .setStreamDuration(Long.MIN_VALUE)
+                .setMediaType(MediaData.MEDIA_TYPE_USER)
+                .setTitle("")
+                .setPosition(Long.MAX_VALUE)
+                .build();
+
+        assertEquals(empty, MediaDataCodec.decode(MediaDataCodec.encode(empty)));
+        assertEquals(extreme, MediaDataCodec.decode(MediaDataCodec.encode(extreme)));
+    }
+
+    @Test
+    public void listRoundTrips() throws IOException {
+        List<MediaData> mediaDataList = createList(10000);
+
+        assertEquals(mediaDataList, readList(writeList(mediaDataList)));
+    }
+
+    @Test
+    public void emptyListRoundTrips() throws IOException {
+        assertTrue(readList(writeList(Collections.<MediaData>emptyList())).isEmpty());
+    }
+
+    @Test
+    public void stringLongerThanBufferRoundTrips() throws IOException {
+        char[] title = new char[20000];
+        Arrays.fill(title, '\u0105');
+        List<MediaData> mediaDataList = Arrays.asList(
+                new MediaData.Builder("https://example.com/1.mp4").setTitle(new String(title)).build(),
+                new MediaData.Builder("https://example.com/2.mp4").setTitle(new String(title)).build());
+
+        assertEquals(mediaDataList, readList(writeList(mediaDataList)));
+    }
+
+    @Test
+    public void listSurvivesOneByteReads() throws IOException {
+        List<MediaData> mediaDataList = createList(100);
+        final byte[] bytes = writeList(mediaDataList);
+
+        ByteArrayInputStream trickle = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+
+        assertEquals(mediaDataList, MediaDataCodec.readList(trickle));
+    }
+
+    @Test
+    public void writerAndReaderStreamItems() throws IOException {
+        List<MediaData> mediaDataList = createList(3);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MediaDataCodec.Writer writer = new MediaDataCodec.Writer(outputStream);
+
+        for (MediaData mediaData : mediaDataList) {
+            writer.write(mediaData);
+        }
+
+        writer.close();
+        MediaDataCodec.Reader reader = new MediaDataCodec.Reader(new ByteArrayInputStream(outputStream.toByteArray()));
+
+        for (MediaData mediaData : mediaDataList) {
+            assertEquals(mediaData, reader.read());
+        }
+
+        assertNull(reader.read());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void headerHoldsCurrentVersion() {
+        byte[] bytes = MediaDataCodec.encode(new MediaData.Builder("https://example.com/video.mp4").build());
+
+        assertArrayEquals(new byte[]{(byte) 0xCA, 0x57, MediaDataCodec.VERSION}, Arrays.copyOf(bytes, 3));
+    }
+
+    @Test
+    public void olderVersionIsAccepted() throws IOException {
+        MediaData mediaData = new MediaData.Builder("https://example.com/video.mp4").build();
+        byte[] bytes = MediaDataCodec.encode(mediaData);
+        bytes[2] = 0;
+
+        assertEquals(mediaData, MediaDataCodec.decode(bytes));
+    }
+
+    @Test
+    public void newerVersionIsRejected() {
+        byte[] bytes = writeList(createList(2));
+        bytes[2] = MediaDataCodec.VERSION + 1;
+
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void wrongMagicIsRejected() {
+        byte[] bytes = writeList(createList(2));
+        bytes[0] = '{';
+
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void emptyInputIsRejected() {
+        assertRejected(new byte[0]);
+    }
+
+    @Test
+    public void headerWithoutItemIsRejectedByDecode() {
+
+        try {
+            MediaDataCodec.decode(writeList(Collections.<MediaData>emptyList()));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e instanceof EOFException);
+        }
+    }
+
+    @Test
+    public void everyTruncationIsRejected() {
+        List<MediaData> mediaDataList = createList(5);
+        byte[] bytes = writeList(mediaDataList);
+        int[] itemEnds = itemEnds(mediaDataList);
+
+        for (int length = 0; length < bytes.length; length++) {
+
+            if(Arrays.binarySearch(itemEnds, length) >= 0) {
+                continue;
+            }
+
+            assertRejected(Arrays.copyOf(bytes, length));
+        }
+    }
+
+    @Test
+    public void truncationAtItemBoundaryReadsCompleteItems() throws IOException {
+        List<MediaData> mediaDataList = createList(5);
+        byte[] bytes = writeList(mediaDataList);
+        int[] itemEnds = itemEnds(mediaDataList);
+
+        assertEquals(mediaDataList.subList(0, 2), readList(Arrays.copyOf(bytes, itemEnds[2])));
+    }
+
+    @Test
+    public void invalidStringReferenceIsRejected() {
+        byte[] bytes = writeList(Collections.<MediaData>emptyList());
+        bytes = Arrays.copyOf(bytes, bytes.length + 2);
+        bytes[bytes.length - 2] = 1 << 1;
+        bytes[bytes.length - 1] = (5 << 1) | 1;
+
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void impossibleStringLengthIsRejected() {
+        byte[] bytes = writeList(Collections.<MediaData>emptyList());
+        int header = bytes.length;
+        bytes = Arrays.copyOf(bytes, header + 7);
+        bytes[header] = 1 << 1;
+        Arrays.fill(bytes, header + 1, header + 6, (byte) 0xFE);
+        bytes[header + 6] = 0x0F;
+
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void impossibleStringReferenceIsRejected() {
+        byte[] bytes = writeList(Collections.<MediaData>emptyList());
+        int header = bytes.length;
+        bytes = Arrays.copyOf(bytes, header + 7);
+        bytes[header] = 1 << 1;
+        Arrays.fill(bytes, header + 1, header + 6, (byte) 0xFF);
+        bytes[header + 6] = 0x0F;
+
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void overlongVarintIsRejected() {
+        byte[] bytes = writeList(Collections.<MediaData>emptyList());
+        int header = bytes.length;
+        bytes = Arrays.copyOf(bytes, header + 11);
+        Arrays.fill(bytes, header, bytes.length, (byte) 0x80);
+
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void corruptInputNeverFailsUnchecked() {
+        byte[] bytes = writeList(createList(20));
+        Random random = new Random(42);
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] corrupt = bytes.clone();
+
+            for (int flips = random.nextInt(4) + 1; flips > 0; flips--) {
+                corrupt[3 + random.nextInt(corrupt.length - 3)] = (byte) random.nextInt(256);
+            }
+
+            try {
+                MediaDataCodec.readList(new ByteArrayInputStream(corrupt));
+            } catch (IOException e) {
+                //expected for most inputs
+            }
+        }
+    }
+
+    static List<MediaData> createList(int size) {
+
+        List<MediaData> mediaDataList = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            MediaData.Builder builder = new MediaData.Builder("https://example.com/video/" + i + ".mp4")
+                    .setStreamType(i % 10 == 0 ? MediaData.STREAM_TYPE_LIVE : MediaData.STREAM_TYPE_BUFFERED)
+                    .setContentType(i % 3 == 0 ? "application/x-mpegURL" : "video/mp4")
+                    .setStreamDuration(i % 10 == 0 ? MediaData.UNKNOWN_DURATION : 60000L * (i % 120))
+                    .setMediaType(MediaData.MEDIA_TYPE_TV_SHOW)
+                    .setTitle("Episode " + i)
+                    .setSubtitle("Season " + (i / 20 + 1))
+                    .addPhotoUrl("https://example.com/image/" + i + ".jpg")
+                    .addPhotoUrl("https://example.com/image/placeholder.jpg")
+                    .setAutoPlay(i % 2 == 0)
+                    .setPosition(i % 5 == 0 ? 0 : 1000L * i);
+            mediaDataList.add(builder.build());
+        }
+
+        return mediaDataList;
+    }
+
+    private static byte[] writeList(List<MediaData> mediaDataList) {
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try {
+            MediaDataCodec.writeList(outputStream, mediaDataList);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private static List<MediaData> readList(byte[] bytes) throws IOException {
+        return MediaDataCodec.readList(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Stream lengths at which an item ends, index 0 being the header alone.
+     */
+    private static int[] itemEnds(List<MediaData> mediaDataList) {
+
+        int[] itemEnds = new int[mediaDataList.size() + 1];
+
+        for (int i = 0; i <= mediaDataList.size(); i++) {
+            itemEnds[i] = writeList(mediaDataList.subList(0, i)).length;
+        }
+
+        return itemEnds;
+    }
+
+    private static void assertRejected(byte[] bytes) {
+
+        try {
+            readList(bytes);
+            fail("Accepted " + bytes.length + " bytes");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package pl.droidsonroids.casty;
+
+import android.app.Activity;
+import android.content.Context;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Cost of the first frame after the mini controller is added to a complex screen, comparing the
+ * overlay used by {@link MiniControllerOverlay} with re-parenting the content view as Casty did
+ * before. The Cast fragment itself needs a cast context, so a placeholder view of the same id
+ * stands in for it; its own cost is the same for both approaches.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class MiniControllerOverlayBenchmark {
+
+    private static final int ROWS = 50;
+    private static final int COLUMNS = 10;
+    private static final int ACTIVITIES = 20;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void firstFrameAfterAttach() {
+
+        long reparentNanos = 0;
+        long overlayNanos = 0;
+        int reparentMeasures = 0;
+        int overlayMeasures = 0;
+
+        for (int i = 0; i < ACTIVITIES; i++) {
+            Activity activity = createActivity();
+            CountingView.measures = 0;
+            long start = System.nanoTime();
+            reparent(activity);
+            frame(activity);
+            reparentNanos += System.nanoTime() - start;
+            reparentMeasures += CountingView.measures;
+
+            activity = createActivity();
+            View contentRoot = ((ViewGroup) activity.findViewById(android.R.id.content)).getChildAt(0);
+            CountingView.measures = 0;
+            start = System.nanoTime();
+            overlay(activity);
+            frame(activity);
+            overlayNanos += System.nanoTime() - start;
+            overlayMeasures += CountingView.measures;
+
+            assertSame(activity.findViewById(android.R.id.content), contentRoot.getParent());
+        }
+
+        Benchmark.report("Mini controller first frame", "re-parenting %.2f ms, %d measures; overlay %.2f ms, %d measures",
+                reparentNanos / 1e6 / ACTIVITIES, reparentMeasures / ACTIVITIES,
+                overlayNanos / 1e6 / ACTIVITIES, overlayMeasures / ACTIVITIES);
+    }
+
+    private static Activity createActivity() {
+
+        Activity activity = Robolectric.buildActivity(Activity.class).create().start().resume().visible().get();
+        LinearLayout root = new LinearLayout(activity);
+        root.setOrientation(LinearLayout.VERTICAL);
+
+        for (int row = 0; row < ROWS; row++) {
+            LinearLayout rowLayout = new LinearLayout(activity);
+
+            for (int column = 0; column < COLUMNS; column++) {
+                rowLayout.addView(new CountingView(activity), new LinearLayout.LayoutParams(0, 30, 1));
+            }
+
+            root.addView(rowLayout);
+        }
+
+        activity.setContentView(root);
+        frame(activity);
+        return activity;
+    }
+
+    private static void frame(Activity activity) {
+        View decorView = activity.getWindow().getDecorView();
+        decorView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        decorView.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Adds the controller the way {@link MiniControllerOverlay#attach(Activity)} does: as one more
+     * child of the content frame.
+     */
+    private static void overlay(Activity activity) {
+        ViewGroup contentView = (ViewGroup) activity.findViewById(android.R.id.content);
+        contentView.addView(createController(activity));
+    }
+
+    /**
+     * Adds the controller the way Casty did before the overlay: wrapping the content root in a new
+     * frame and setting it as the content view again.
+     */
+    private static void reparent(Activity activity) {
+
+        ViewGroup contentView = (ViewGroup) activity.findViewById(android.R.id.content);
+        View rootView = contentView.getChildAt(0);
+
+        FrameLayout frameLayout = new FrameLayout(activity);
+        frameLayout.setLayoutParams(new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT,
+                FrameLayout.LayoutParams.MATCH_PARENT));
+
+        contentView.removeView(rootView);
+
+        ViewGroup.LayoutParams oldRootParams = rootView.getLayoutParams();
+        rootView.setLayoutParams(new FrameLayout.LayoutParams(oldRootParams.width, oldRootParams.height));
+
+        frameLayout.addView(rootView);
+        frameLayout.addView(createController(activity));
+        activity.setContentView(frameLayout);
+    }
+
+    private static View createController(Context context) {
+
+        View controller = new View(context);
+        controller.setId(R.id.casty_mini_controller);
+        controller.setLayoutParams(new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, 150,
+                Gravity.BOTTOM));
+        return controller;
+    }
+
+    private static final class CountingView extends View {
+
+        static int measures;
+
+        CountingView(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            measures++;
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+}
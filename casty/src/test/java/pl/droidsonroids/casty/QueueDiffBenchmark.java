@@ -0,0 +1,59 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cost of diffing playlists of 10k entries: small edits, as when a user reorders or filters an
+ * up-next list, and a full reversal as the worst case for moves.
+ */
+public class QueueDiffBenchmark {
+
+    private static final int SIZE = 10000;
+    private static final int RUNS = 20;
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void diffTenThousandEntries() {
+
+        final int[] oldKeys = QueueDiffTest.range(SIZE);
+        final int[] editedKeys = QueueDiffTest.randomEdit(oldKeys, new Random(1));
+        final int[] reversedKeys = new int[SIZE];
+
+        for (int i = 0; i < SIZE; i++) {
+            reversedKeys[i] = SIZE - 1 - i;
+        }
+
+        double editedNanos = Benchmark.nanosPerOperation(RUNS, new Runnable() {
+            @Override
+            public void run() {
+
+                for (int i = 0; i < RUNS; i++) {
+                    QueueDiff.compute(oldKeys, editedKeys, SIZE / 2);
+                }
+            }
+        });
+
+        double reversedNanos = Benchmark.nanosPerOperation(RUNS, new Runnable() {
+            @Override
+            public void run() {
+
+                for (int i = 0; i < RUNS; i++) {
+                    QueueDiff.compute(oldKeys, reversedKeys, QueueDiff.NO_KEY);
+                }
+            }
+        });
+
+        List<QueueDiff.Operation> operations = QueueDiffTest.verify(oldKeys, editedKeys, SIZE / 2);
+
+        Benchmark.report("QueueDiff 10k entries", "random edit %.2f ms (%d operations), reversal %.2f ms",
+                editedNanos / 1e6, operations.size(), reversedNanos / 1e6);
+    }
+}
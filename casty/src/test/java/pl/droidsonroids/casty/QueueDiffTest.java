@@ -0,0 +1,313 @@
+package pl.droidsonroids.casty;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueueDiffTest {
+
+    @Test
+    public void emptyListsNeedNoOperations() {
+        assertTrue(QueueDiff.compute(new int[0], new int[0], QueueDiff.NO_KEY).isEmpty());
+    }
+
+    @Test
+    public void equalListsNeedNoOperations() {
+        assertTrue(QueueDiff.compute(keys(1, 2, 3), keys(1, 2, 3), 2).isEmpty());
+    }
+
+    @Test
+    public void fillingEmptyListIsOneInsert() {
+        List<QueueDiff.Operation> operations = verify(new int[0], keys(1, 2, 3), QueueDiff.NO_KEY);
+
+        assertEquals(1, operations.size());
+        assertEquals(QueueDiff.OPERATION_INSERT, operations.get(0).type);
+        assertEquals(QueueDiff.NO_KEY, operations.get(0).beforeKey);
+        assertEquals(0, operations.get(0).position);
+    }
+
+    @Test
+    public void clearingListIsOneRemove() {
+        List<QueueDiff.Operation> operations = verify(keys(1, 2, 3), new int[0], QueueDiff.NO_KEY);
+
+        assertEquals(1, operations.size());
+        assertEquals(QueueDiff.OPERATION_REMOVE, operations.get(0).type);
+        assertArrayEquals(keys(1, 2, 3), operations.get(0).keys);
+    }
+
+    @Test
+    public void singleMoveKeepsEverythingElse() {
+        List<QueueDiff.Operation> operations = verify(keys(1, 2, 3, 4, 5), keys(1, 4, 2, 3, 5), QueueDiff.NO_KEY);
+
+        assertEquals(1, operations.size());
+        assertEquals(QueueDiff.OPERATION_MOVE, operations.get(0).type);
+        assertArrayEquals(keys(4), operations.get(0).keys);
+        assertEquals(2, operations.get(0).beforeKey);
+    }
+
+    @Test
+    public void reversedListKeepsOneKey() {
+        assertEquals(4, movedKeys(verify(keys(1, 2, 3, 4, 5), keys(5, 4, 3, 2, 1), QueueDiff.NO_KEY)));
+    }
+
+    @Test
+    public void rotationMovesOneKey() {
+        assertEquals(1, movedKeys(verify(keys(1, 2, 3, 4, 5), keys(2, 3, 4, 5, 1), QueueDiff.NO_KEY)));
+    }
+
+    @Test
+    public void contiguousRunsAreBatched() {
+        List<QueueDiff.Operation> operations = verify(keys(1, 2, 3), keys(1, 7, 8, 9, 2, 3), QueueDiff.NO_KEY);
+
+        assertEquals(1, operations.size());
+        assertArrayEquals(keys(7, 8, 9), operations.get(0).keys);
+        assertEquals(2, operations.get(0).beforeKey);
+    }
+
+    @Test
+    public void pinnedKeyIsNeverMoved() {
+        List<QueueDiff.Operation> operations = verify(keys(1, 2, 3, 4, 5), keys(5, 4, 3, 2, 1), 3);
+
+        for (QueueDiff.Operation operation : operations) {
+
+            for (int key : operation.keys) {
+                assertFalse(key == 3);
+            }
+        }
+    }
+
+    @Test
+    public void pinnedKeyMissingFromNewListIsKept() {
+        List<QueueDiff.Operation> operations = QueueDiff.compute(keys(1, 2, 3), keys(1, 3), 2);
+
+        assertTrue(operations.isEmpty());
+    }
+
+    @Test
+    public void repeatedEntriesKeepTheirOwnKeys() {
+        Object[] entries = {"a", "b", "a", "c"};
+        int[] entryKeys = keys(10, 11, 12, 13);
+
+        int[] matched = QueueDiff.matchKeys(entries, entryKeys, Arrays.asList("a", "a", "d", "a", "c"), 14);
+
+        assertArrayEquals(keys(10, 12, 14, 15, 13), matched);
+    }
+
+    @Test
+    public void randomEditsAreAppliedWithMinimalMoves() {
+        Random random = new Random(42);
+
+        for (int round = 0; round < 500; round++) {
+            int[] oldKeys = range(random.nextInt(30));
+            int[] newKeys = randomEdit(oldKeys, random);
+            List<QueueDiff.Operation> operations = verify(oldKeys, newKeys, QueueDiff.NO_KEY);
+
+            assertEquals(Arrays.toString(oldKeys) + " -> " + Arrays.toString(newKeys),
+                    retainedCount(oldKeys, newKeys) - longestIncreasingRetained(oldKeys, newKeys), movedKeys(operations));
+        }
+    }
+
+    @Test
+    public void randomEditsKeepPinnedKeyInPlace() {
+        Random random = new Random(7);
+
+        for (int round = 0; round < 500; round++) {
+            int[] oldKeys = range(1 + random.nextInt(30));
+            int pinnedKey = oldKeys[random.nextInt(oldKeys.length)];
+            int[] newKeys = randomEdit(oldKeys, random);
+            List<QueueDiff.Operation> operations = QueueDiff.compute(oldKeys, newKeys, pinnedKey);
+
+            for (QueueDiff.Operation operation : operations) {
+
+                if(operation.type != QueueDiff.OPERATION_INSERT) {
+
+                    for (int key : operation.keys) {
+                        assertFalse(key == pinnedKey);
+                    }
+                }
+            }
+
+            if(contains(newKeys, pinnedKey)) {
+                assertArrayEquals(newKeys, apply(oldKeys, operations));
+            }
+        }
+    }
+
+    /**
+     * Computes the operations and checks that applying them, the way the receiver does, yields the
+     * requested list.
+     */
+    static List<QueueDiff.Operation> verify(int[] oldKeys, int[] newKeys, int pinnedKey) {
+        List<QueueDiff.Operation> operations = QueueDiff.compute(oldKeys, newKeys, pinnedKey);
+        assertArrayEquals(newKeys, apply(oldKeys, operations));
+        return operations;
+    }
+
+    static int[] apply(int[] oldKeys, List<QueueDiff.Operation> operations) {
+
+        List<Integer> list = new ArrayList<>();
+
+        for (int key : oldKeys) {
+            list.add(key);
+        }
+
+        for (QueueDiff.Operation operation : operations) {
+
+            for (int key : operation.keys) {
+                list.remove(Integer.valueOf(key));
+            }
+
+            if(operation.type == QueueDiff.OPERATION_REMOVE) {
+                continue;
+            }
+
+            int index = operation.beforeKey == QueueDiff.NO_KEY ? list.size() : list.indexOf(operation.beforeKey);
+            assertTrue("anchor must exist", index >= 0);
+
+            for (int key : operation.keys) {
+                list.add(index++, key);
+            }
+        }
+
+        int[] keys = new int[list.size()];
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = list.get(i);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Removes, shuffles a few and inserts keys, keeping them unique.
+     */
+    static int[] randomEdit(int[] oldKeys, Random random) {
+
+        List<Integer> list = new ArrayList<>();
+
+        for (int key : oldKeys) {
+
+            if(random.nextInt(5) != 0) {
+                list.add(key);
+            }
+        }
+
+        for (int i = random.nextInt(4); i > 0 && list.size() > 1; i--) {
+            Collections.swap(list, random.nextInt(list.size()), random.nextInt(list.size()));
+        }
+
+        int nextKey = oldKeys.length;
+
+        for (int i = random.nextInt(4); i > 0; i--) {
+            list.add(random.nextInt(list.size() + 1), nextKey++);
+        }
+
+        int[] keys = new int[list.size()];
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = list.get(i);
+        }
+
+        return keys;
+    }
+
+    private static int movedKeys(List<QueueDiff.Operation> operations) {
+
+        int moved = 0;
+
+        for (QueueDiff.Operation operation : operations) {
+
+            if(operation.type == QueueDiff.OPERATION_MOVE) {
+                moved += operation.keys.length;
+            }
+        }
+
+        return moved;
+    }
+
+    private static int retainedCount(int[] oldKeys, int[] newKeys) {
+
+        int retained = 0;
+
+        for (int key : newKeys) {
+
+            if(contains(oldKeys, key)) {
+                retained++;
+            }
+        }
+
+        return retained;
+    }
+
+    /**
+     * Quadratic reference for the number of retained keys which can stay in place.
+     */
+    private static int longestIncreasingRetained(int[] oldKeys, int[] newKeys) {
+
+        List<Integer> positions = new ArrayList<>();
+
+        for (int key : newKeys) {
+
+            for (int i = 0; i < oldKeys.length; i++) {
+
+                if(oldKeys[i] == key) {
+                    positions.add(i);
+                }
+            }
+        }
+
+        int[] lengths = new int[positions.size()];
+        int longest = 0;
+
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = 1;
+
+            for (int j = 0; j < i; j++) {
+
+                if(positions.get(j) < positions.get(i)) {
+                    lengths[i] = Math.max(lengths[i], lengths[j] + 1);
+                }
+            }
+
+            longest = Math.max(longest, lengths[i]);
+        }
+
+        return longest;
+    }
+
+    private static boolean contains(int[] keys, int key) {
+
+        for (int value : keys) {
+
+            if(value == key) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static int[] range(int size) {
+
+        int[] keys = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            keys[i] = i;
+        }
+
+        return keys;
+    }
+
+    private static int[] keys(int... keys) {
+        return keys;
+    }
+}
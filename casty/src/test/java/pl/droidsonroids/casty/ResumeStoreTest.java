@@ -0,0 +1,183 @@
+package pl.droidsonroids.casty;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stores do their disk work on the paused main looper, so each test decides when the journal is
+ * loaded and flushed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ResumeStoreTest {
+
+    private static final long POSITION = 60000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        ShadowLooper.pauseMainLooper();
+        file = File.createTempFile("casty_resume", ".log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+        file.delete();
+    }
+
+    @Test
+    public void recordedPositionIsReturned() {
+        ResumeStore resumeStore = openStore();
+        resumeStore.record(url(1), POSITION, 0);
+
+        assertEquals(POSITION, resumeStore.getPosition(url(1)));
+    }
+
+    @Test
+    public void positionsNearStartAndEndAreNotKept() {
+        ResumeStore resumeStore = openStore();
+        resumeStore.record(url(1), ResumeStore.MIN_POSITION - 1, 0);
+        resumeStore.record(url(2), POSITION, 0);
+        resumeStore.record(url(2), 100000 - ResumeStore.FINISHED_MARGIN + 1, 100000);
+
+        assertEquals(0, resumeStore.getPosition(url(1)));
+        assertEquals(0, resumeStore.getPosition(url(2)));
+    }
+
+    @Test
+    public void positionsArePersisted() {
+        ResumeStore resumeStore = openStore();
+        resumeStore.record(url(1), POSITION, 0);
+        resumeStore.record(url(2), POSITION, 0);
+        resumeStore.remove(url(2));
+        flush();
+
+        ResumeStore reopened = openStore();
+
+        assertEquals(POSITION, reopened.getPosition(url(1)));
+        assertEquals(0, reopened.getPosition(url(2)));
+    }
+
+    @Test
+    public void clearBeforeLoadIsKept() {
+        ResumeStore resumeStore = openStore();
+        resumeStore.record(url(1), POSITION, 0);
+        flush();
+
+        ResumeStore reopened = new ResumeStore(file, new Handler(Looper.getMainLooper()));
+        reopened.clear();
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(0, reopened.getPosition(url(1)));
+        assertEquals(0, openStore().getPosition(url(1)));
+    }
+
+    @Test
+    public void removeBeforeLoadIsKept() {
+        ResumeStore resumeStore = openStore();
+        resumeStore.record(url(1), POSITION, 0);
+        resumeStore.record(url(2), POSITION, 0);
+        flush();
+
+        ResumeStore reopened = new ResumeStore(file, new Handler(Looper.getMainLooper()));
+        reopened.remove(url(1));
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(0, reopened.getPosition(url(1)));
+        assertEquals(POSITION, reopened.getPosition(url(2)));
+
+        flush();
+        ResumeStore loadedAgain = openStore();
+
+        assertEquals(0, loadedAgain.getPosition(url(1)));
+        assertEquals(POSITION, loadedAgain.getPosition(url(2)));
+    }
+
+    @Test
+    public void recordBeforeLoadWins() {
+        ResumeStore resumeStore = openStore();
+        resumeStore.record(url(1), POSITION, 0);
+        flush();
+
+        ResumeStore reopened = new ResumeStore(file, new Handler(Looper.getMainLooper()));
+        reopened.record(url(1), 2 * POSITION, 0);
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(2 * POSITION, reopened.getPosition(url(1)));
+    }
+
+    @Test
+    public void fullIndexKeepsRecentlyUsedTitles() {
+        ResumeStore resumeStore = openStore();
+        fill(resumeStore, 0, ResumeStore.MAX_ENTRIES);
+        resumeStore.record(url(ResumeStore.MAX_ENTRIES), POSITION, 0);
+
+        int watched = ResumeStore.MAX_ENTRIES / 3;
+        int lookedUp = 2 * ResumeStore.MAX_ENTRIES / 3;
+        resumeStore.record(url(watched), POSITION + 1000, 0);
+        assertEquals(POSITION, resumeStore.getPosition(url(lookedUp)));
+
+        int added = ResumeStore.MAX_ENTRIES / 2;
+        fill(resumeStore, ResumeStore.MAX_ENTRIES + 1, added);
+
+        assertEquals(POSITION + 1000, resumeStore.getPosition(url(watched)));
+        assertEquals(POSITION, resumeStore.getPosition(url(lookedUp)));
+        assertEquals(POSITION, resumeStore.getPosition(url(ResumeStore.MAX_ENTRIES + added)));
+        assertEquals(ResumeStore.MAX_ENTRIES, count(resumeStore, 0, ResumeStore.MAX_ENTRIES + added + 1));
+    }
+
+    /**
+     * Opens a store on the test journal and loads it.
+     */
+    private ResumeStore openStore() {
+
+        ResumeStore resumeStore = new ResumeStore(file, new Handler(Looper.getMainLooper()));
+        ShadowLooper.runUiThreadTasks();
+        return resumeStore;
+    }
+
+    private static void flush() {
+        ShadowLooper.idleMainLooper(ResumeStore.FLUSH_DELAY);
+    }
+
+    private static void fill(ResumeStore resumeStore, int from, int count) {
+
+        for (int i = from; i < from + count; i++) {
+            resumeStore.record(url(i), POSITION, 0);
+        }
+    }
+
+    private static int count(ResumeStore resumeStore, int from, int to) {
+
+        int count = 0;
+
+        for (int i = from; i < to; i++) {
+
+            if(resumeStore.getPosition(url(i)) != 0) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static String url(int index) {
+        return "https://example.com/video/" + index + ".mp4";
+    }
+}